@@ -0,0 +1,137 @@
+package com.lookout.jenkins;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.Timer;
+
+import com.lookout.jenkins.output.OutputParser;
+import com.lookout.jenkins.output.OutputTooLargeException;
+
+/**
+ * Runs an environment script on the node that holds the workspace and parses
+ * its output there, so only the resulting {@link ScriptResult} is sent back to
+ * the controller instead of every byte the script prints.
+ *
+ * The script is started with a {@link Launcher.LocalLauncher} on the agent,
+ * which means decorations applied to the build's launcher by other wrappers
+ * are not applied to it.
+ */
+public class AgentScriptRunner extends MasterToSlaveFileCallable<ScriptResult> {
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(AgentScriptRunner.class.getName());
+
+    private final String[] cmds;
+    private final byte[] stdin;
+    private final EnvVars envs;
+    private final String outputFormat;
+    private final long maxOutputSize;
+    private final int maxVariableSize;
+    private final int timeout;
+    private final TaskListener listener;
+
+    /**
+     * @param stdin        What to feed the script on its standard input, or null
+     *                     for nothing.
+     * @param outputFormat One of the FORMAT_ constants in {@link OutputParser}.
+     * @param timeout      How many seconds the script may run, or zero for no
+     *                     limit.
+     */
+    public AgentScriptRunner(String[] cmds, byte[] stdin, EnvVars envs, String outputFormat, long maxOutputSize,
+            int maxVariableSize, int timeout, TaskListener listener) {
+        this.cmds = cmds;
+        this.stdin = stdin;
+        this.envs = envs;
+        this.outputFormat = outputFormat;
+        this.maxOutputSize = maxOutputSize;
+        this.maxVariableSize = maxVariableSize;
+        this.timeout = timeout;
+        this.listener = listener;
+    }
+
+    public ScriptResult invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        OutputParser output = OutputParser.create(outputFormat, maxOutputSize, maxVariableSize);
+        Launcher.ProcStarter starter = new Launcher.LocalLauncher(listener).launch().cmds(cmds);
+        if (stdin != null) {
+            starter.stdin(new ByteArrayInputStream(stdin));
+        }
+        starter.envs(envs)
+                .stderr(listener.getLogger())
+                .stdout(output)
+                .pwd(workspace);
+        return run(starter, output, timeout);
+    }
+
+    /**
+     * Starts the script and waits for it to finish, killing it along with any
+     * processes it started if it runs for longer than timeout seconds, if it
+     * prints more than output accepts, or if the calling thread is
+     * interrupted because the build was aborted.
+     *
+     * @param output Where the starter sends the standard output of the script.
+     */
+    static ScriptResult run(Launcher.ProcStarter starter, final OutputParser output, int timeout)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        final Proc proc = starter.start();
+        long launchNanos = System.nanoTime() - start;
+        // The rest of the output would only be discarded, so don't wait for it.
+        output.setOnFailure(new Runnable() {
+            public void run() {
+                if (output.getFailure() instanceof OutputTooLargeException) {
+                    Timer.get().submit(new Runnable() {
+                        public void run() {
+                            try {
+                                proc.kill();
+                            } catch (IOException | InterruptedException e) {
+                                LOGGER.log(Level.WARNING, "Unable to kill environment script with too much output", e);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+
+        start = System.nanoTime();
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> killer = null;
+        if (timeout > 0) {
+            killer = Timer.get().schedule(new Runnable() {
+                public void run() {
+                    timedOut.set(true);
+                    try {
+                        proc.kill();
+                    } catch (IOException | InterruptedException e) {
+                        LOGGER.log(Level.WARNING, "Unable to kill environment script that timed out", e);
+                    }
+                }
+            }, timeout, TimeUnit.SECONDS);
+        }
+
+        int returnCode;
+        try {
+            // Proc#join kills the process tree itself when interrupted.
+            returnCode = proc.join();
+        } finally {
+            if (killer != null) {
+                killer.cancel(false);
+            }
+        }
+        // Parse whatever is left after the last line break.
+        output.close();
+        return new ScriptResult(returnCode, output, launchNanos, System.nanoTime() - start, timedOut.get());
+    }
+}
@@ -0,0 +1,95 @@
+package com.lookout.jenkins;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Controller-wide cache of parsed script results, used by jobs that enable
+ * {@link EnvironmentScript#isCacheResults()}.
+ *
+ * Entries are content-addressed: the key is a digest of the script, its type,
+ * the node it runs on and the values of the input variables chosen by the
+ * user, so a changed input simply never matches an old entry. Entries expire
+ * after a per-job time to live, and the least recently used entry is evicted
+ * once the cache holds more than the globally configured number of entries.
+ */
+public final class EnvironmentCache {
+    private static final EnvironmentCache INSTANCE = new EnvironmentCache();
+
+    // Access-ordered, so iteration starts with the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    public static EnvironmentCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return The cached entry for this key, or null if there is none or it is
+     *         older than ttlMillis. A ttlMillis of zero or less never expires.
+     */
+    public synchronized Entry lookup(String key, long ttlMillis) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (ttlMillis > 0 && System.currentTimeMillis() - entry.created > ttlMillis) {
+            entries.remove(key);
+            return null;
+        }
+
+        return entry;
+    }
+
+    public synchronized void store(String key, EnvironmentSnapshot snapshot, int maxEntries) {
+        entries.put(key, new Entry(snapshot));
+
+        Iterator<String> eldest = entries.keySet().iterator();
+        while (entries.size() > Math.max(maxEntries, 0) && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Computes the cache key for a script run. Only the variables named in
+     * inputVariables are taken from env, everything else in the environment is
+     * ignored.
+     */
+    public static String computeKey(List<ScriptFragment> scripts, String outputFormat, String node,
+            List<String> inputVariables, Map<String, String> env) {
+        ScriptDigest digest = new ScriptDigest();
+        for (ScriptFragment script : scripts) {
+            digest.update(script.getScript()).update(script.getScriptType());
+        }
+        digest.update(outputFormat);
+        digest.update(node);
+        for (String name : inputVariables) {
+            digest.update(name).update(env.get(name));
+        }
+        return digest.toHex();
+    }
+
+    public static final class Entry {
+        private final EnvironmentSnapshot snapshot;
+        private final long created = System.currentTimeMillis();
+
+        Entry(EnvironmentSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        public EnvironmentSnapshot getSnapshot() {
+            return snapshot;
+        }
+    }
+}
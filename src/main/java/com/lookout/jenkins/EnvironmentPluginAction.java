@@ -1,19 +1,84 @@
 package com.lookout.jenkins;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import hudson.EnvVars;
 import hudson.model.EnvironmentContributingAction;
 import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import jenkins.util.SystemProperties;
 
-public class EnvironmentPluginAction implements EnvironmentContributingAction {
+/**
+ * Remembers the variables injected into a build, so that
+ * {@link AbstractBuild#getEnvironment} keeps returning them after the build
+ * has finished and after a restart.
+ *
+ * Small sets of variables are stored in build.xml. Larger ones are written to
+ * a separate {@link #SIDECAR_FILE} in the build directory, which is only read
+ * the first time the variables are needed, so loading the build records of a
+ * job stays cheap. Either way they are held as an interned
+ * {@link EnvironmentSnapshot}, so the builds in memory that injected the same
+ * variables share them.
+ */
+public class EnvironmentPluginAction implements EnvironmentContributingAction, RunAction2 {
+    private static final Logger LOGGER = Logger.getLogger(EnvironmentPluginAction.class.getName());
 
-    private transient Map<String, String> envAdditions;
-    private transient Map<String, String> envOverrides;
+    public static final String SIDECAR_FILE = "environment-script.properties";
+
+    /**
+     * Variables whose keys and values add up to more characters than this are
+     * stored in {@link #SIDECAR_FILE} rather than build.xml.
+     */
+    private static final int INLINE_LIMIT = SystemProperties.getInteger(EnvironmentPluginAction.class.getName()
+            + ".inlineLimit", 4096);
+
+    private EnvironmentSnapshot snapshot;
+    // Whether the variables are in SIDECAR_FILE instead of snapshot.
+    private boolean sidecar;
+
+    // Where builds recorded by older versions kept their variables.
+    @Deprecated
+    private Map<String, String> envAdditions;
+    @Deprecated
+    private Map<String, String> envOverrides;
+
+    private transient Run<?, ?> run;
+    private transient volatile EnvironmentSnapshot sidecarSnapshot;
+    private transient volatile EnvironmentSnapshot.Overlay overlay;
+
+    public EnvironmentPluginAction(EnvironmentSnapshot snapshot) {
+        this.snapshot = snapshot.intern();
+    }
 
     public EnvironmentPluginAction(Map<String, String> envAdditions, Map<String, String> envOverrides) {
-        this.envAdditions = envAdditions;
-        this.envOverrides = envOverrides;
+        this(new EnvironmentSnapshot(envAdditions, envOverrides));
+    }
+
+    @SuppressWarnings("deprecation")
+    protected Object readResolve() {
+        if (envAdditions != null || envOverrides != null) {
+            snapshot = new EnvironmentSnapshot(
+                    envAdditions == null ? Collections.<String, String>emptyMap() : envAdditions,
+                    envOverrides == null ? Collections.<String, String>emptyMap() : envOverrides);
+            envAdditions = null;
+            envOverrides = null;
+        }
+        if (snapshot != null) {
+            snapshot = snapshot.intern();
+        }
+        return this;
     }
 
     public String getIconFileName() {
@@ -28,20 +93,106 @@ public class EnvironmentPluginAction implements EnvironmentContributingAction {
         return "EnvironmentPluginAction";
     }
 
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+        if (sidecar || snapshot == null || snapshot.length() <= INLINE_LIMIT) {
+            return;
+        }
+
+        try {
+            writeSidecar(new File(r.getRootDir(), SIDECAR_FILE));
+        } catch (IOException e) {
+            // Keep them in build.xml instead.
+            LOGGER.log(Level.WARNING, "Unable to write " + SIDECAR_FILE + " for " + r, e);
+            return;
+        }
+        sidecarSnapshot = snapshot;
+        snapshot = null;
+        sidecar = true;
+    }
+
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public EnvironmentSnapshot getSnapshot() {
+        EnvironmentSnapshot loaded = findSnapshot();
+        // Not remembered, so the next call tries to read the sidecar file again.
+        return loaded == null ? EnvironmentSnapshot.EMPTY : loaded;
+    }
+
+    /**
+     * @return The variables, or null if they are in {@link #SIDECAR_FILE} and
+     *         that could not be read.
+     */
+    EnvironmentSnapshot findSnapshot() {
+        if (sidecar) {
+            return loadSidecar();
+        }
+        return snapshot == null ? EnvironmentSnapshot.EMPTY : snapshot;
+    }
+
+    public Map<String, String> getEnvAdditions() {
+        return getSnapshot().getEnvAdditions();
+    }
+
+    public Map<String, String> getEnvOverrides() {
+        return getSnapshot().getEnvOverrides();
+    }
+
     public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
 
         if (env == null) {
             return;
         }
 
-        if (envAdditions != null) {
-            env.putAll(envAdditions);
+        EnvironmentSnapshot.Overlay overlay = this.overlay;
+        if (overlay == null) {
+            overlay = getSnapshot().overlay();
+            if (!sidecar || sidecarSnapshot != null) {
+                this.overlay = overlay;
+            }
         }
+        overlay.buildEnvVars(env);
 
-        if (envOverrides != null) {
-            env.overrideAll(envOverrides);
-        }
+    }
 
+    private void writeSidecar(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(snapshot.getEnvAdditions());
+        properties.putAll(snapshot.getEnvOverrides());
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
     }
 
+    /**
+     * @return The variables in {@link #SIDECAR_FILE}, or null if they could not
+     *         be read.
+     */
+    private synchronized EnvironmentSnapshot loadSidecar() {
+        if (sidecarSnapshot != null) {
+            return sidecarSnapshot;
+        }
+        if (run == null) {
+            return null;
+        }
+
+        File file = new File(run.getRootDir(), SIDECAR_FILE);
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to read injected variables from " + file, e);
+            return null;
+        }
+        Map<String, String> variables = new HashMap<String, String>();
+        for (String key : properties.stringPropertyNames()) {
+            variables.put(key, properties.getProperty(key));
+        }
+
+        // Same split as EnvironmentScript uses when the variables are generated.
+        sidecarSnapshot = EnvironmentSnapshot.of(variables).intern();
+        return sidecarSnapshot;
+    }
 }
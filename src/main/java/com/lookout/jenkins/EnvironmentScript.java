@@ -1,5 +1,6 @@
 package com.lookout.jenkins;
 
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
@@ -12,25 +13,56 @@ import hudson.matrix.MatrixBuild;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import com.lookout.jenkins.commands.Commands;
+import com.lookout.jenkins.commands.Interpreters;
 import com.lookout.jenkins.commands.PowerShell;
 import com.lookout.jenkins.commands.Shebangs;
+import com.lookout.jenkins.commands.TrivialScript;
 import com.lookout.jenkins.commands.UnixShell;
 import com.lookout.jenkins.commands.WinBatch;
+import com.lookout.jenkins.output.OutputTooLargeException;
+import com.lookout.jenkins.output.OutputParser;
 
 /**
  * Runs a specific chunk of code before each build, parsing output for new
@@ -40,199 +72,1377 @@ import com.lookout.jenkins.commands.WinBatch;
  * @author dawidmalina@gmail.com
  */
 public class EnvironmentScript extends BuildWrapper implements MatrixAggregatable {
+    public static final String FALLBACK_FAIL = "fail";
+    public static final String FALLBACK_FAIL_DISPLAY_NAME = "Fail the build";
+    public static final String FALLBACK_LAST_ENVIRONMENT = "lastEnvironment";
+    public static final String FALLBACK_LAST_ENVIRONMENT_DISPLAY_NAME = "Use the last known environment";
+    public static final String CONFLICT_LAST_WINS = "lastWins";
+    public static final String CONFLICT_LAST_WINS_DISPLAY_NAME = "The last script wins";
+    public static final String CONFLICT_FIRST_WINS = "firstWins";
+    public static final String CONFLICT_FIRST_WINS_DISPLAY_NAME = "The first script wins";
+    public static final String CONFLICT_FAIL = "fail";
+    public static final String CONFLICT_FAIL_DISPLAY_NAME = "Fail the build";
+
+    // Seconds before the first retry unless configured, like the form shows.
+    static final int DEFAULT_RETRY_DELAY = 5;
+
+    // No backoff between retries grows beyond this, jitter included.
+    static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // $NAME, ${NAME}, %NAME% and $env:NAME, in any kind of script.
+    private static final Pattern VARIABLE_REFERENCE = Pattern.compile(
+            "\\$env:([A-Za-z_][A-Za-z0-9_]*)|\\$\\{?([A-Za-z_][A-Za-z0-9_]*)|%([A-Za-z_][A-Za-z0-9_]*)%");
+
+    // How far back a build looks for one whose watched files it can compare with.
+    static final int MAX_WATCHED_BUILDS = 10;
+
     private final String script;
     private final String scriptType;
     private final boolean runOnlyOnParent;
     private final boolean hideEnvironmentVariablesValues;
+    private boolean cacheResults;
+    private String cacheInputVariables;
+    private int cacheTtl;
+    private String watchedFiles;
+    private boolean parseOnAgent;
+    private boolean warmInterpreter;
+    private boolean alwaysLaunchScript;
+    private String scriptDelivery;
+    private String outputFormat;
+    private String logMode;
+    private Integer logSummaryKeys;
+    private String sharedBy;
+    private String sharedAxes;
+    private int timeout;
+    private String fallbackPolicy;
+    private int maxAttempts;
+    private Integer retryDelay;
+    private String retryExitCodes;
+    private List<ScriptFragment> fragments;
+    private String conflictPolicy;
+    private boolean injectChangedOnly;
+    private String concurrencyGroup;
+    private boolean speculative;
+    private String speculativeInputVariables;
+
+    @DataBoundConstructor
+    public EnvironmentScript(String script, String scriptType, boolean runOnlyOnParent,
+            boolean hideEnvironmentVariablesValues) {
+        this.script = script;
+        this.scriptType = scriptType;
+        this.runOnlyOnParent = runOnlyOnParent;
+        this.hideEnvironmentVariablesValues = hideEnvironmentVariablesValues;
+    }
+
+    /**
+     * We'll use this from the "config.jelly".
+     */
+    public String getScript() {
+        return script;
+    }
+
+    /**
+     * We will use this from the "config.jelly".
+     * 
+     * @return
+     */
+    public String getScriptType() {
+        return scriptType;
+    }
+
+    /**
+     * @return Whether or not we only run this on the {@link MatrixBuild} parent, or
+     *         on the individual {@link MatrixRun}
+     *         s.
+     */
+    public boolean isRunOnlyOnParent() {
+        return runOnlyOnParent;
+    }
+
+    public boolean isHideEnvironmentVariablesValues() {
+        return hideEnvironmentVariablesValues;
+    }
+
+    /**
+     * @return Whether the parsed output of the script is cached in
+     *         {@link EnvironmentCache} and reused instead of running the script
+     *         again.
+     */
+    public boolean isCacheResults() {
+        return cacheResults;
+    }
+
+    @DataBoundSetter
+    public void setCacheResults(boolean cacheResults) {
+        this.cacheResults = cacheResults;
+    }
+
+    /**
+     * @return Names of the environment variables that make up the cache key,
+     *         separated by whitespace or commas.
+     */
+    public String getCacheInputVariables() {
+        return cacheInputVariables;
+    }
+
+    @DataBoundSetter
+    public void setCacheInputVariables(String cacheInputVariables) {
+        this.cacheInputVariables = Util.fixEmptyAndTrim(cacheInputVariables);
+    }
+
+    public List<String> getCacheInputVariableNames() {
+        if (cacheInputVariables == null) {
+            return Collections.emptyList();
+        }
+        String[] names = Util.tokenize(cacheInputVariables, ", \t\r\n");
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    /**
+     * @return How many seconds a cached result stays valid, zero meaning it
+     *         never expires.
+     */
+    public int getCacheTtl() {
+        return cacheTtl;
+    }
+
+    @DataBoundSetter
+    public void setCacheTtl(int cacheTtl) {
+        this.cacheTtl = Math.max(cacheTtl, 0);
+    }
+
+    /**
+     * @return Whether the script is run and its output parsed on the node that
+     *         holds the workspace, sending only the parsed variables back.
+     */
+    public boolean isParseOnAgent() {
+        return parseOnAgent;
+    }
+
+    @DataBoundSetter
+    public void setParseOnAgent(boolean parseOnAgent) {
+        this.parseOnAgent = parseOnAgent;
+    }
+
+    /**
+     * @return Comma or space separated globs of the workspace files the script
+     *         reads, or null. If they are set and none of the files changed,
+     *         the environment of an earlier build is reused, see
+     *         {@link WatchedFilesAction}.
+     */
+    public String getWatchedFiles() {
+        return watchedFiles;
+    }
+
+    @DataBoundSetter
+    public void setWatchedFiles(String watchedFiles) {
+        this.watchedFiles = Util.fixEmptyAndTrim(watchedFiles);
+    }
+
+    /**
+     * @return Whether Unix and PowerShell scripts are sent to an interpreter
+     *         kept running on the node, see {@link WarmScriptRunner}.
+     */
+    public boolean isWarmInterpreter() {
+        return warmInterpreter;
+    }
+
+    @DataBoundSetter
+    public void setWarmInterpreter(boolean warmInterpreter) {
+        this.warmInterpreter = warmInterpreter;
+    }
+
+    /**
+     * @return Whether scripts that only echo are launched anyway, instead of
+     *         being evaluated by {@link TrivialScript}.
+     */
+    public boolean isAlwaysLaunchScript() {
+        return alwaysLaunchScript;
+    }
+
+    @DataBoundSetter
+    public void setAlwaysLaunchScript(boolean alwaysLaunchScript) {
+        this.alwaysLaunchScript = alwaysLaunchScript;
+    }
+
+    /**
+     * @return How the script is handed to its interpreter, one of the
+     *         DELIVERY_ constants in {@link Commands}.
+     */
+    public String getScriptDelivery() {
+        return scriptDelivery == null ? Commands.DELIVERY_TEMP_FILE : scriptDelivery;
+    }
+
+    @DataBoundSetter
+    public void setScriptDelivery(String scriptDelivery) {
+        this.scriptDelivery = Util.fixEmpty(scriptDelivery);
+    }
+
+    /**
+     * @return How the script prints its variables, one of the FORMAT_ constants
+     *         in {@link OutputParser}.
+     */
+    public String getOutputFormat() {
+        return outputFormat == null ? OutputParser.FORMAT_PROPERTIES : outputFormat;
+    }
+
+    @DataBoundSetter
+    public void setOutputFormat(String outputFormat) {
+        this.outputFormat = Util.fixEmpty(outputFormat);
+    }
+
+    /**
+     * @return How the injected variables are written to the console, one of the
+     *         MODE_ constants in {@link VariableLogger}.
+     */
+    public String getLogMode() {
+        return logMode == null ? VariableLogger.MODE_FULL : logMode;
+    }
+
+    @DataBoundSetter
+    public void setLogMode(String logMode) {
+        this.logMode = Util.fixEmpty(logMode);
+    }
+
+    /**
+     * @return How many variable names are listed in the summary log mode.
+     */
+    public int getLogSummaryKeys() {
+        return logSummaryKeys == null ? 10 : logSummaryKeys;
+    }
+
+    @DataBoundSetter
+    public void setLogSummaryKeys(int logSummaryKeys) {
+        this.logSummaryKeys = Math.max(logSummaryKeys, 0);
+    }
+
+    /**
+     * @return How configuration runs of a matrix build share environments when
+     *         the script isn't only run on the parent: one of the SHARE_
+     *         constants in {@link SharedEnvironment}, or null if every run
+     *         generates its own.
+     */
+    public String getSharedBy() {
+        return sharedBy;
+    }
+
+    @DataBoundSetter
+    public void setSharedBy(String sharedBy) {
+        this.sharedBy = Util.fixEmpty(sharedBy);
+    }
+
+    /**
+     * @return Names of the axes whose values make up the key environments are
+     *         shared by, separated by whitespace or commas.
+     */
+    public String getSharedAxes() {
+        return sharedAxes;
+    }
+
+    @DataBoundSetter
+    public void setSharedAxes(String sharedAxes) {
+        this.sharedAxes = Util.fixEmptyAndTrim(sharedAxes);
+    }
+
+    public List<String> getSharedAxisNames() {
+        if (sharedAxes == null) {
+            return Collections.emptyList();
+        }
+        String[] names = Util.tokenize(sharedAxes, ", \t\r\n");
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    /**
+     * @return How many seconds the script may run before it is killed, or zero
+     *         for no limit.
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @DataBoundSetter
+    public void setTimeout(int timeout) {
+        this.timeout = Math.max(timeout, 0);
+    }
+
+    /**
+     * @return What to do when the script times out or its circuit breaker is
+     *         open, one of the FALLBACK_ constants.
+     */
+    public String getFallbackPolicy() {
+        return fallbackPolicy == null ? FALLBACK_FAIL : fallbackPolicy;
+    }
+
+    @DataBoundSetter
+    public void setFallbackPolicy(String fallbackPolicy) {
+        this.fallbackPolicy = Util.fixEmpty(fallbackPolicy);
+    }
+
+    /**
+     * @return How many times the script is run before its exit code fails the
+     *         build, at least once.
+     */
+    public int getMaxAttempts() {
+        return Math.max(maxAttempts, 1);
+    }
+
+    @DataBoundSetter
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(maxAttempts, 0);
+    }
+
+    /**
+     * @return How many seconds to wait at most before the first retry,
+     *         doubling for every further one, see
+     *         {@link #computeRetryDelayMillis}.
+     */
+    public int getRetryDelay() {
+        return retryDelay == null ? DEFAULT_RETRY_DELAY : retryDelay;
+    }
+
+    @DataBoundSetter
+    public void setRetryDelay(int retryDelay) {
+        this.retryDelay = Math.max(retryDelay, 0);
+    }
+
+    /**
+     * @return Exit codes that make the script run again, separated by spaces or
+     *         commas, or null for any non-zero exit code.
+     */
+    public String getRetryExitCodes() {
+        return retryExitCodes;
+    }
+
+    @DataBoundSetter
+    public void setRetryExitCodes(String retryExitCodes) {
+        this.retryExitCodes = Util.fixEmptyAndTrim(retryExitCodes);
+    }
+
+    /**
+     * @return The exit codes in {@link #getRetryExitCodes()}, ignoring anything
+     *         that is not a number, or an empty set for any non-zero exit code.
+     */
+    public Set<Integer> getRetryExitCodeSet() {
+        Set<Integer> codes = new TreeSet<Integer>();
+        if (retryExitCodes != null) {
+            for (String code : Util.tokenize(retryExitCodes, ", \t\r\n")) {
+                try {
+                    codes.add(Integer.valueOf(code));
+                } catch (NumberFormatException e) {
+                    // Reported by the form validation.
+                }
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * @return Scripts that run at the same time as the main script, with their
+     *         output merged after that of the main script, in this order.
+     */
+    public List<ScriptFragment> getFragments() {
+        return fragments == null ? Collections.<ScriptFragment>emptyList() : fragments;
+    }
+
+    @DataBoundSetter
+    public void setFragments(List<ScriptFragment> fragments) {
+        this.fragments = fragments == null || fragments.isEmpty() ? null
+                : new ArrayList<ScriptFragment>(fragments);
+    }
+
+    /**
+     * @return Which value wins when several scripts set the same variable, one
+     *         of the CONFLICT_ constants.
+     */
+    public String getConflictPolicy() {
+        return conflictPolicy == null ? CONFLICT_LAST_WINS : conflictPolicy;
+    }
+
+    @DataBoundSetter
+    public void setConflictPolicy(String conflictPolicy) {
+        this.conflictPolicy = Util.fixEmpty(conflictPolicy);
+    }
+
+    /**
+     * @return Whether variables the script prints with the value they already
+     *         have in the environment it ran with are left out.
+     */
+    public boolean isInjectChangedOnly() {
+        return injectChangedOnly;
+    }
+
+    @DataBoundSetter
+    public void setInjectChangedOnly(boolean injectChangedOnly) {
+        this.injectChangedOnly = injectChangedOnly;
+    }
+
+    /**
+     * @return The group whose concurrency limit applies to this job, when the
+     *         limit is configured per group.
+     */
+    public String getConcurrencyGroup() {
+        return concurrencyGroup;
+    }
+
+    @DataBoundSetter
+    public void setConcurrencyGroup(String concurrencyGroup) {
+        this.concurrencyGroup = Util.fixEmptyAndTrim(concurrencyGroup);
+    }
+
+    /**
+     * @return Whether the script is started while the build waits in the
+     *         queue, see {@link SpeculativeEnvironment}.
+     */
+    public boolean isSpeculative() {
+        return speculative;
+    }
+
+    @DataBoundSetter
+    public void setSpeculative(boolean speculative) {
+        this.speculative = speculative;
+    }
+
+    /**
+     * @return Names of the variables that must have the same value for the
+     *         build as for the script run while it was queued, besides those
+     *         the scripts refer to, separated by whitespace or commas.
+     */
+    public String getSpeculativeInputVariables() {
+        return speculativeInputVariables;
+    }
+
+    @DataBoundSetter
+    public void setSpeculativeInputVariables(String speculativeInputVariables) {
+        this.speculativeInputVariables = Util.fixEmpty(speculativeInputVariables);
+    }
+
+    /**
+     * Keeps scripts started while builds of the job were queued out of the
+     * checkout, see {@link SpeculativeEnvironment#beforeCheckout}.
+     */
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void preCheckout(AbstractBuild build, Launcher launcher, BuildListener listener)
+            throws IOException, InterruptedException {
+        SpeculativeEnvironment.get().beforeCheckout(build, listener);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Environment setUp(AbstractBuild build,
+            final Launcher launcher,
+            final BuildListener listener) throws IOException, InterruptedException {
+        if ((build instanceof MatrixRun) && isRunOnlyOnParent()) {
+            // If this is a matrix run and we have the onlyRunOnParent option
+            // enabled, we just retrieve the persisted environment from the
+            // PersistedEnvironment Action.
+            MatrixBuild parent = ((MatrixRun) build).getParentBuild();
+            if (parent != null) {
+                PersistedEnvironment persisted = parent.getAction(PersistedEnvironment.class);
+                if (persisted != null) {
+                    return createEnvironment(persisted.getSnapshot());
+                } else {
+                    listener.error(
+                            "[environment-script] Unable to load persisted environment from matrix parent job, not injecting any variables");
+                    return new Environment() {
+                    };
+                }
+            } else {
+                // If there's no parent, then the module build was triggered
+                // manually, so we generate a new environment.
+                return generateEnvironment(build, launcher, listener);
+            }
+        } else if ((build instanceof MatrixRun) && getSharedBy() != null) {
+            // Share the environment with the other runs of the parent that have the
+            // same key, if we know the parent.
+            MatrixBuild parent = ((MatrixRun) build).getParentBuild();
+            SharedEnvironment shared = parent == null ? null : parent.getAction(SharedEnvironment.class);
+            if (shared != null) {
+                return generateSharedEnvironment((MatrixRun) build, shared, launcher, listener);
+            }
+            return generateEnvironment(build, launcher, listener);
+        } else {
+            // Otherwise we generate a new one.
+            return generateEnvironment(build, launcher, listener);
+        }
+    }
+
+    /**
+     * Generates the environment for this run, unless another run of the same
+     * matrix build already generated or is generating it for the same key.
+     */
+    private Environment generateSharedEnvironment(MatrixRun run, SharedEnvironment shared,
+            final Launcher launcher,
+            final BuildListener listener) throws IOException, InterruptedException {
+        String key = SharedEnvironment.getKey(run, getSharedBy(), getSharedAxisNames());
+        ScriptTimings timings = new ScriptTimings();
+        try {
+            while (true) {
+                CompletableFuture<EnvironmentSnapshot> generating = new CompletableFuture<EnvironmentSnapshot>();
+                CompletableFuture<EnvironmentSnapshot> existing = shared.claim(key, generating);
+                if (existing == null) {
+                    EnvironmentSnapshot snapshot = null;
+                    try {
+                        snapshot = generateSnapshot(run, launcher, listener, timings);
+                    } finally {
+                        // Also when interrupted, so that waiting runs don't wait forever.
+                        shared.finish(key, generating, snapshot);
+                    }
+                    if (snapshot == null) {
+                        return null;
+                    }
+                    return publishEnvironment(run, listener, snapshot, timings);
+                }
+
+                long start = System.nanoTime();
+                if (!existing.isDone()) {
+                    listener.getLogger().println("[environment-script] Waiting for the environment shared by " + key);
+                }
+                EnvironmentSnapshot snapshot = SharedEnvironment.await(existing);
+                timings.recordSince(ScriptTimings.WAITING, start);
+                if (snapshot != null) {
+                    listener.getLogger().println("[environment-script] Using the environment shared by " + key
+                            + ", not running script");
+                    return publishEnvironment(run, listener, snapshot, timings);
+                }
+                listener.getLogger().println("[environment-script] Generating the environment shared by " + key
+                        + " failed in another run, running script");
+            }
+        } finally {
+            recordTimings(run, timings);
+        }
+    }
+
+    private Environment generateEnvironment(AbstractBuild<?, ?> build,
+            final Launcher launcher,
+            final BuildListener listener) throws IOException, InterruptedException {
+        ScriptTimings timings = new ScriptTimings();
+        try {
+            EnvironmentSnapshot snapshot = generateSnapshot(build, launcher, listener, timings);
+            if (snapshot == null) {
+                return null;
+            }
+            return publishEnvironment(build, listener, snapshot, timings);
+        } finally {
+            recordTimings(build, timings);
+        }
+    }
+
+    /**
+     * Attaches the timings to the build and adds them to
+     * {@link EnvironmentScriptMetrics}.
+     */
+    static void recordTimings(Run<?, ?> run, ScriptTimings timings) {
+        timings.finish();
+        run.addAction(new ScriptTimingsAction(timings));
+        EnvironmentScriptMetrics.get().record(run.getParent().getFullName(), timings);
+    }
+
+    /**
+     * Runs the script (unless its result is cached) and returns the variables
+     * it produced, or null if that failed.
+     */
+    private EnvironmentSnapshot generateSnapshot(AbstractBuild<?, ?> build,
+            final Launcher launcher,
+            final BuildListener listener, ScriptTimings timings) throws IOException, InterruptedException {
+        FilePath ws = build.getWorkspace();
+        if (ws == null) {
+            listener.error(Messages.EnvironmentScriptWrapper_WorkspaceIsNull());
+            timings.setFailure(ScriptTimings.FAILURE_WORKSPACE);
+            return null;
+        }
+
+        return generateSnapshot(build, ws, launcher, build.getEnvironment(listener), listener, timings);
+    }
+
+    /**
+     * Runs the script and its fragments in ws with the environment env, unless
+     * their result is cached, and returns the variables they produced, or null
+     * if that failed. This is shared by the build wrapper and
+     * {@link EnvironmentScriptStep}.
+     */
+    EnvironmentSnapshot generateSnapshot(Run<?, ?> run, FilePath ws, final Launcher launcher, final EnvVars env,
+            final TaskListener listener, ScriptTimings timings) throws IOException, InterruptedException {
+        EnvironmentSnapshot snapshot = produceSnapshot(run, ws, launcher, env, listener, timings);
+        if (snapshot == null || !isInjectChangedOnly()) {
+            return snapshot;
+        }
+
+        // The full snapshot is what gets cached, since the environment it is
+        // compared with can differ between builds sharing a cache key.
+        EnvironmentSnapshot changed = snapshot.withoutUnchanged(env);
+        listener.getLogger().println("[environment-script] Skipping " + (snapshot.size() - changed.size())
+                + " variables the script did not change");
+        return changed;
+    }
+
+    private EnvironmentSnapshot produceSnapshot(Run<?, ?> run, FilePath ws, final Launcher launcher, final EnvVars env,
+            final TaskListener listener, ScriptTimings timings) throws IOException, InterruptedException {
+        Computer computer = ws.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        List<ScriptFragment> scripts = getScripts();
+
+        String cacheKey = null;
+        if (isCacheResults()) {
+            cacheKey = EnvironmentCache.computeKey(scripts, getOutputFormat(),
+                    node == null ? "" : node.getNodeName(), getCacheInputVariableNames(), env);
+            EnvironmentCache.Entry cached = EnvironmentCache.get().lookup(cacheKey, cacheTtl * 1000L);
+            if (cached != null) {
+                listener.getLogger().println("[environment-script] Cache hit for key " + cacheKey
+                        + ", not running script");
+                timings.setCached(true);
+                return cached.getSnapshot();
+            }
+            listener.getLogger().println("[environment-script] Cache miss for key " + cacheKey + ", running script");
+        }
+
+        String watchKey = null;
+        if (getWatchedFiles() != null) {
+            watchKey = getWatchKey(scripts, node, ws, env, listener, timings);
+            Run<?, ?> previous = watchKey == null ? null : findWatchedBuild(run);
+            WatchedFilesAction watched = previous == null ? null : previous.getAction(WatchedFilesAction.class);
+            EnvironmentSnapshot reused = null;
+            if (watched != null && watchKey.equals(watched.getKey())) {
+                reused = previous.getAction(EnvironmentPluginAction.class).findSnapshot();
+                if (reused == null) {
+                    listener.error("[environment-script] Unable to read the environment of "
+                            + previous.getFullDisplayName());
+                }
+            }
+            if (reused != null) {
+                listener.getLogger().println("[environment-script] Watched files unchanged since "
+                        + previous.getFullDisplayName() + ", reusing its environment");
+                timings.setCached(true);
+                run.addAction(new WatchedFilesAction(watchKey));
+                return reused;
+            }
+            if (watchKey != null) {
+                listener.getLogger().println("[environment-script] Watched files "
+                        + (previous == null ? "not seen by an earlier build" : "changed since "
+                                + previous.getFullDisplayName()) + ", running script");
+            }
+        }
+
+        int threshold = getDescriptor().getCircuitBreakerThreshold();
+        String circuitKey = threshold > 0 ? ScriptCircuitBreaker.computeKey(scripts) : null;
+        if (circuitKey != null && !ScriptCircuitBreaker.get().allow(circuitKey, threshold,
+                getDescriptor().getCircuitBreakerCooldown() * 1000L)) {
+            timings.setFailure(ScriptTimings.FAILURE_CIRCUIT_OPEN);
+            String message = "[environment-script] The script failed in the last " + threshold
+                    + " builds that ran it, not running it while its circuit breaker is open";
+            if (!FALLBACK_LAST_ENVIRONMENT.equals(getFallbackPolicy())) {
+                listener.fatalError(message);
+                return null;
+            }
+
+            listener.error(message);
+            EnvironmentSnapshot last = getLastEnvironment(run, cacheKey, listener);
+            if (last == null) {
+                listener.fatalError("[environment-script] No earlier environment to fall back to");
+            }
+            return last;
+        }
+
+        List<ScriptResult> results = null;
+        long scriptStart = System.nanoTime();
+        if (isSpeculative()) {
+            results = SpeculativeEnvironment.get().collect(run.getQueueId(),
+                    getSpeculationKey(scripts, node, ws, env), getSpeculationInputs(scripts, env), listener);
+        }
+        for (int attempt = 1;; attempt++) {
+            if (results == null) {
+                ScriptThrottle.Slot slot = acquireSlot(run.getParent(), node, listener, timings);
+                scriptStart = System.nanoTime();
+                try {
+                    results = runScripts(run.getParent(), ws, node, scripts, launcher, env, listener, timings);
+                } catch (AbortException e) {
+                    // The interpreter is missing, which needs no stack trace.
+                    listener.fatalError(e.getMessage());
+                    timings.setFailure(ScriptTimings.FAILURE_INTERPRETER);
+                    return null;
+                } catch (IOException e) {
+                    Util.displayIOException(e, listener);
+                    e.printStackTrace(listener.fatalError(Messages.EnvironmentScriptWrapper_UnableToProduceScript()));
+                    timings.setFailure(ScriptTimings.FAILURE_SCRIPT_FILE);
+                    return null;
+                } catch (InterruptedException e) {
+                    // The process tree has already been killed by now.
+                    listener.getLogger().println("[environment-script] Build was aborted after waiting "
+                            + formatSeconds(System.nanoTime() - scriptStart) + " for the script, killed it");
+                    throw e;
+                } finally {
+                    if (slot != null) {
+                        slot.close();
+                    }
+                }
+            }
+
+            for (ScriptResult result : results) {
+                timings.record(ScriptTimings.LAUNCH, result.getLaunchNanos());
+                timings.record(ScriptTimings.EXECUTION, result.getExecutionNanos());
+                timings.record(ScriptTimings.PARSING, result.getParseNanos());
+                timings.setOutputBytes(timings.getOutputBytes() + result.getOutputSize());
+            }
+
+            int returnCode = getRetryableReturnCode(results);
+            if (returnCode == 0 || attempt >= getMaxAttempts()) {
+                break;
+            }
+            long delayMillis = computeRetryDelayMillis(getRetryDelay(), attempt, ThreadLocalRandom.current());
+            listener.getLogger().println("[environment-script] The script exited with code " + returnCode
+                    + ", retrying in " + formatSeconds(TimeUnit.MILLISECONDS.toNanos(delayMillis)) + " (attempt "
+                    + (attempt + 1) + " of " + getMaxAttempts() + ")");
+            long start = System.nanoTime();
+            Thread.sleep(delayMillis);
+            timings.recordSince(ScriptTimings.RETRY_BACKOFF, start);
+            results = null;
+        }
+
+        boolean timedOut = false, failed = false;
+        for (ScriptResult result : results) {
+            timedOut |= result.isTimedOut();
+            failed |= result.getReturnCode() != 0 && !(result.getFailure() instanceof OutputTooLargeException);
+        }
+
+        if (circuitKey != null) {
+            if (!timedOut && !failed) {
+                ScriptCircuitBreaker.get().recordSuccess(circuitKey);
+            } else if (ScriptCircuitBreaker.get().recordFailure(circuitKey, threshold)) {
+                listener.error("[environment-script] The script failed in " + threshold + " builds in a row,"
+                        + " opening its circuit breaker for " + getDescriptor().getCircuitBreakerCooldown() + " s");
+            }
+        }
+
+        if (timeout > 0) {
+            listener.getLogger().println("[environment-script] Waited "
+                    + formatSeconds(System.nanoTime() - scriptStart) + " for the script");
+        }
+
+        if (timedOut) {
+            timings.setFailure(ScriptTimings.FAILURE_TIMEOUT);
+            if (!FALLBACK_LAST_ENVIRONMENT.equals(getFallbackPolicy())) {
+                listener.fatalError(Messages.EnvironmentScriptWrapper_ScriptTimedOut(timeout));
+                return null;
+            }
+
+            listener.error(Messages.EnvironmentScriptWrapper_ScriptTimedOut(timeout));
+            EnvironmentSnapshot last = getLastEnvironment(run, cacheKey, listener);
+            if (last == null) {
+                listener.fatalError("[environment-script] No earlier environment to fall back to");
+            }
+            return last;
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            ScriptResult result = results.get(i);
+            // A script that prints too much is killed, which is what its exit code says.
+            boolean tooLarge = result.getFailure() instanceof OutputTooLargeException;
+            if (result.getReturnCode() != 0 && !tooLarge) {
+                logFragment(listener, i);
+                listener.fatalError(Messages.EnvironmentScriptWrapper_UnableToExecuteScript(result.getReturnCode()));
+                timings.setFailure(ScriptTimings.FAILURE_EXIT_CODE);
+                return null;
+            }
+
+            if (result.getFailure() != null) {
+                logFragment(listener, i);
+                listener.fatalError(Messages.EnvironmentScriptWrapper_UnableToParseScriptOutputBecause(
+                        result.getFailure().getMessage()));
+                timings.setFailure(tooLarge ? ScriptTimings.FAILURE_OUTPUT_TOO_LARGE : ScriptTimings.FAILURE_PARSE);
+                return null;
+            }
+        }
+
+        Map<String, String> variables = mergeVariables(results, listener);
+        if (variables == null) {
+            timings.setFailure(ScriptTimings.FAILURE_CONFLICT);
+            return null;
+        }
+
+        // We sort overrides and additions into two different buckets, because they have
+        // to be processed in sequence.
+        EnvironmentSnapshot snapshot = EnvironmentSnapshot.of(variables);
+
+        if (cacheKey != null) {
+            EnvironmentCache.get().store(cacheKey, snapshot, getDescriptor().getCacheSize());
+        }
+        if (watchKey != null) {
+            run.addAction(new WatchedFilesAction(watchKey));
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Hashes the watched files on the node that holds ws.
+     *
+     * @return A digest of the files and everything else the environment
+     *         depends on, or null if the files could not be hashed.
+     */
+    String getWatchKey(List<ScriptFragment> scripts, Node node, FilePath ws, EnvVars env, TaskListener listener,
+            ScriptTimings timings) throws InterruptedException {
+        long start = System.nanoTime();
+        WatchedFiles.Digest digest;
+        try {
+            digest = ws.act(new WatchedFiles(getWatchedFiles()));
+        } catch (IOException e) {
+            listener.error("[environment-script] Unable to hash the watched files: " + e);
+            return null;
+        } finally {
+            timings.recordSince(ScriptTimings.WATCHED_FILES, start);
+        }
+        listener.getLogger().println("[environment-script] Hashed " + digest.getFiles() + " watched files in "
+                + ScriptTimings.formatMillis(System.nanoTime() - start));
+
+        String script = EnvironmentCache.computeKey(scripts, getOutputFormat(),
+                node == null ? "" : node.getNodeName(), Collections.<String>emptyList(), env);
+        return ScriptDigest.of(script, digest.getHex());
+    }
+
+    /**
+     * @return The latest earlier build that recorded its watched files and the
+     *         environment it injected, looking back at most
+     *         {@link #MAX_WATCHED_BUILDS} builds, or null.
+     */
+    private static Run<?, ?> findWatchedBuild(Run<?, ?> run) {
+        Run<?, ?> previous = run.getPreviousBuild();
+        // Builds that failed before the environment was injected did not record
+        // both.
+        for (int i = 0; previous != null && i < MAX_WATCHED_BUILDS; i++) {
+            if (previous.getAction(WatchedFilesAction.class) != null
+                    && previous.getAction(EnvironmentPluginAction.class) != null) {
+                return previous;
+            }
+            previous = previous.getPreviousBuild();
+        }
+        return null;
+    }
+
+    /**
+     * @return The exit code that calls for running the scripts again, or zero if
+     *         they succeeded or failed in a way retrying does not help with:
+     *         timing out, printing too much or an exit code not chosen for
+     *         retries.
+     */
+    private int getRetryableReturnCode(List<ScriptResult> results) {
+        Set<Integer> codes = getRetryExitCodeSet();
+        int returnCode = 0;
+        for (ScriptResult result : results) {
+            if (result.isTimedOut() || result.getFailure() instanceof OutputTooLargeException) {
+                return 0;
+            }
+            if (result.getReturnCode() != 0) {
+                if (!codes.isEmpty() && !codes.contains(result.getReturnCode())) {
+                    return 0;
+                }
+                returnCode = result.getReturnCode();
+            }
+        }
+        return returnCode;
+    }
+
+    /**
+     * Exponential backoff with jitter: the delay doubles with every attempt,
+     * and a random half of it is dropped, so that builds failing together do
+     * not retry together.
+     *
+     * @param retryDelay How many seconds the first delay is at most.
+     * @param attempt    The attempt that failed, starting at 1.
+     */
+    static long computeRetryDelayMillis(int retryDelay, int attempt, Random random) {
+        long delay = TimeUnit.SECONDS.toMillis(retryDelay) << Math.min(attempt - 1, 20);
+        delay = Math.min(delay, MAX_RETRY_DELAY_MILLIS);
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    /**
+     * Waits until the global concurrency limit lets the scripts of this build
+     * run, if there is one.
+     *
+     * @return The slot to release once the scripts finished, or null if they
+     *         are not limited.
+     */
+    private ScriptThrottle.Slot acquireSlot(Job<?, ?> job, Node node, TaskListener listener,
+            ScriptTimings timings) throws InterruptedException {
+        int permits = getDescriptor().getMaxConcurrentScripts();
+        String key = getThrottleKey(job, node);
+        if (permits <= 0 || key == null) {
+            return null;
+        }
+
+        ScriptThrottle throttle = ScriptThrottle.get();
+        long start = System.nanoTime();
+        ScriptThrottle.Slot slot = throttle.tryAcquire(key, permits);
+        if (slot == null) {
+            listener.getLogger().println("[environment-script] Waiting for one of the " + permits
+                    + " script slots for " + key + ", " + throttle.getQueueLength(key)
+                    + " builds are waiting already");
+            slot = throttle.acquire(key, permits);
+            listener.getLogger().println("[environment-script] Waited "
+                    + formatSeconds(System.nanoTime() - start) + " for a script slot");
+        }
+        // Recorded even without waiting, so the metrics show how often builds wait.
+        timings.recordSince(ScriptTimings.QUEUED, start);
+        return slot;
+    }
+
+    /**
+     * @return What the global concurrency limit applies to for this build, or
+     *         null if it is not limited.
+     */
+    String getThrottleKey(Job<?, ?> job, Node node) {
+        String scope = getDescriptor().getConcurrencyScope();
+        if (ScriptThrottle.SCOPE_GROUP.equals(scope)) {
+            return concurrencyGroup == null ? null : "group " + concurrencyGroup;
+        } else if (ScriptThrottle.SCOPE_LABEL.equals(scope)) {
+            String label = null;
+            if (job instanceof AbstractProject) {
+                label = ((AbstractProject<?, ?>) job).getAssignedLabelString();
+            }
+            if (label == null && node != null) {
+                // Pipeline builds and jobs that run anywhere are limited per node.
+                label = node.getSelfLabel().getName();
+            }
+            return "label " + Util.fixNull(label);
+        }
+        return "the controller";
+    }
+
+    /**
+     * @return The sorted names of the speculative input variables.
+     */
+    public List<String> getSpeculativeInputVariableNames() {
+        if (speculativeInputVariables == null) {
+            return Collections.emptyList();
+        }
+        String[] names = Util.tokenize(speculativeInputVariables, ", \t\r\n");
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
 
-    @DataBoundConstructor
-    public EnvironmentScript(String script, String scriptType, boolean runOnlyOnParent,
-            boolean hideEnvironmentVariablesValues) {
-        this.script = script;
-        this.scriptType = scriptType;
-        this.runOnlyOnParent = runOnlyOnParent;
-        this.hideEnvironmentVariablesValues = hideEnvironmentVariablesValues;
+    /**
+     * @return The sorted names of the variables a speculative result must have
+     *         been computed with the same values of: the speculative input
+     *         variables and every variable the scripts refer to.
+     */
+    public List<String> getSpeculationVariableNames(List<ScriptFragment> scripts) {
+        Set<String> names = new TreeSet<String>(getSpeculativeInputVariableNames());
+        for (ScriptFragment fragment : scripts) {
+            Matcher matcher = VARIABLE_REFERENCE.matcher(fragment.getScript());
+            while (matcher.find()) {
+                for (int group = 1; group <= matcher.groupCount(); group++) {
+                    if (matcher.group(group) != null) {
+                        names.add(matcher.group(group));
+                    }
+                }
+            }
+        }
+        return new ArrayList<String>(names);
     }
 
     /**
-     * We'll use this from the "config.jelly".
+     * @return The values of {@link #getSpeculationVariableNames} in env, by
+     *         name.
      */
-    public String getScript() {
-        return script;
+    Map<String, String> getSpeculationInputs(List<ScriptFragment> scripts, EnvVars env) {
+        Map<String, String> inputs = new TreeMap<String, String>();
+        for (String name : getSpeculationVariableNames(scripts)) {
+            inputs.put(name, env.get(name));
+        }
+        return inputs;
     }
 
     /**
-     * We will use this from the "config.jelly".
-     * 
-     * @return
+     * @return What the results of a speculative run are valid for: the
+     *         scripts, the node, the workspace and the values of
+     *         {@link #getSpeculationVariableNames}.
      */
-    public String getScriptType() {
-        return scriptType;
+    String getSpeculationKey(List<ScriptFragment> scripts, Node node, FilePath ws, EnvVars env) {
+        return EnvironmentCache.computeKey(scripts, getOutputFormat(),
+                (node == null ? "" : node.getNodeName()) + "\n" + ws.getRemote(),
+                getSpeculationVariableNames(scripts), env);
     }
 
     /**
-     * @return Whether or not we only run this on the {@link MatrixBuild} parent, or
-     *         on the individual {@link MatrixRun}
-     *         s.
+     * Runs the scripts for a build that is still queued, if the global
+     * concurrency limit has a slot free right away.
+     *
+     * @return Their results, or null if no slot was free.
      */
-    public boolean isRunOnlyOnParent() {
-        return runOnlyOnParent;
+    List<ScriptResult> speculate(Job<?, ?> job, List<ScriptFragment> scripts, Node node, FilePath ws,
+            Launcher launcher, EnvVars env, TaskListener listener) throws IOException, InterruptedException {
+        int permits = getDescriptor().getMaxConcurrentScripts();
+        String key = getThrottleKey(job, node);
+        ScriptThrottle.Slot slot = null;
+        if (permits > 0 && key != null) {
+            // Builds that are already running go first.
+            slot = ScriptThrottle.get().tryAcquire(key, permits);
+            if (slot == null) {
+                return null;
+            }
+        }
+        try {
+            return runScripts(job, ws, node, scripts, launcher, env, listener, new ScriptTimings());
+        } finally {
+            if (slot != null) {
+                slot.close();
+            }
+        }
     }
 
-    public boolean isHideEnvironmentVariablesValues() {
-        return hideEnvironmentVariablesValues;
+    /**
+     * @return The main script followed by the fragments, in the order their
+     *         output is merged.
+     */
+    public List<ScriptFragment> getScripts() {
+        List<ScriptFragment> scripts = new ArrayList<ScriptFragment>(getFragments().size() + 1);
+        scripts.add(new ScriptFragment(script, scriptType));
+        scripts.addAll(getFragments());
+        return scripts;
     }
 
-    @SuppressWarnings("rawtypes")
-    @Override
-    public Environment setUp(AbstractBuild build,
-            final Launcher launcher,
-            final BuildListener listener) throws IOException, InterruptedException {
-        if ((build instanceof MatrixRun) && isRunOnlyOnParent()) {
-            // If this is a matrix run and we have the onlyRunOnParent option
-            // enabled, we just retrieve the persisted environment from the
-            // PersistedEnvironment Action.
-            MatrixBuild parent = ((MatrixRun) build).getParentBuild();
-            if (parent != null) {
-                PersistedEnvironment persisted = parent.getAction(PersistedEnvironment.class);
-                if (persisted != null) {
-                    return persisted.getEnvironment();
-                } else {
-                    listener.error(
-                            "[environment-script] Unable to load persisted environment from matrix parent job, not injecting any variables");
-                    return new Environment() {
-                    };
+    private static void logFragment(TaskListener listener, int index) {
+        if (index > 0) {
+            listener.getLogger().println("[environment-script] Script fragment " + index + " failed");
+        }
+    }
+
+    /**
+     * Merges the variables of all scripts in order, resolving variables set by
+     * more than one of them according to the conflict policy.
+     *
+     * @return The variables, or null if they conflict and the policy says to
+     *         fail.
+     */
+    private Map<String, String> mergeVariables(List<ScriptResult> results, TaskListener listener) {
+        if (results.size() == 1) {
+            return results.get(0).getVariables();
+        }
+
+        String policy = getConflictPolicy();
+        Map<String, String> variables = new LinkedHashMap<String, String>();
+        for (ScriptResult result : results) {
+            for (Map.Entry<String, String> variable : result.getVariables().entrySet()) {
+                if (!variables.containsKey(variable.getKey())) {
+                    variables.put(variable.getKey(), variable.getValue());
+                } else if (CONFLICT_FAIL.equals(policy)) {
+                    listener.fatalError(Messages.EnvironmentScriptWrapper_ConflictingVariable(variable.getKey()));
+                    return null;
+                } else if (CONFLICT_LAST_WINS.equals(policy)) {
+                    variables.put(variable.getKey(), variable.getValue());
                 }
-            } else {
-                // If there's no parent, then the module build was triggered
-                // manually, so we generate a new environment.
-                return generateEnvironment(build, launcher, listener);
             }
-        } else {
-            // Otherwise we generate a new one.
-            return generateEnvironment(build, launcher, listener);
         }
+        return variables;
     }
 
-    private Environment generateEnvironment(AbstractBuild<?, ?> build,
-            final Launcher launcher,
-            final BuildListener listener) throws IOException, InterruptedException {
-        // First we create the script in a temporary directory.
-        FilePath ws = build.getWorkspace(), scriptFile = null;
+    /**
+     * Runs all scripts concurrently. As soon as one fails, by exiting with a
+     * non-zero code, timing out or printing what can't be parsed, the others
+     * are interrupted.
+     *
+     * @return Their results, in the same order as scripts, with
+     *         {@link ScriptResult#cancelled()} for those that were interrupted.
+     */
+    private List<ScriptResult> runScripts(final Job<?, ?> job, final FilePath ws, final Node node,
+            List<ScriptFragment> scripts, final Launcher launcher, final EnvVars env, final TaskListener listener,
+            final ScriptTimings timings) throws IOException, InterruptedException {
+        if (scripts.size() == 1) {
+            return Collections.singletonList(runScript(job, ws, node, scripts.get(0), launcher, env, listener,
+                    timings));
+        }
 
-        if (ws == null) {
-            listener.error(Messages.EnvironmentScriptWrapper_WorkspaceIsNull());
-            return null;
+        // Each script runs on the remoting thread pool, so that whichever fails
+        // first stops the others.
+        CompletionService<ScriptResult> completion = new ExecutorCompletionService<ScriptResult>(
+                Computer.threadPoolForRemoting);
+        Map<Future<ScriptResult>, Integer> indexes = new HashMap<Future<ScriptResult>, Integer>();
+        for (int i = 0; i < scripts.size(); i++) {
+            final ScriptFragment fragment = scripts.get(i);
+            indexes.put(completion.submit(new Callable<ScriptResult>() {
+                public ScriptResult call() throws IOException, InterruptedException {
+                    return runScript(job, ws, node, fragment, launcher, env, listener, timings);
+                }
+            }), i);
         }
 
-        ByteArrayOutputStream commandOutput = new ByteArrayOutputStream();
-        int returnCode = -1;
+        ScriptResult[] results = new ScriptResult[scripts.size()];
         try {
-            // Calculate extension
-            String extension = ".sh";
-            if (Commands.POWER_SHELL.equals(scriptType)) {
-                extension = ".ps1";
-            } else if (Commands.BATCH_SCRIPT.equals(scriptType)) {
-                extension = ".bat";
-            }
-
-            // Make sure prefix will always be more than 3 letters
-            // Replace the equals sign with an underscore because Windows doesn't accept
-            // this
-            final String prefix = "env-" + build.getProject().getName().replace("=", "_");
-            // Create a file in the system temporary directory with our script in it.
-            scriptFile = ws.createTextTempFile(prefix, extension, script, false);
-
-            // Then we execute the script, putting STDOUT in commandOutput.
-            returnCode = launcher.launch().cmds(buildCommandLine(scriptFile))
-                    .envs(build.getEnvironment(listener))
-                    .stderr(listener.getLogger())
-                    .stdout(commandOutput)
-                    .pwd(ws).join();
-        } catch (IOException e) {
-            Util.displayIOException(e, listener);
-            e.printStackTrace(listener.fatalError(Messages.EnvironmentScriptWrapper_UnableToProduceScript()));
-            return null;
+            for (int done = 0; done < results.length; done++) {
+                Future<ScriptResult> future = completion.take();
+                ScriptResult result = future.get();
+                results[indexes.get(future)] = result;
+                if (result.getReturnCode() != 0 || result.isTimedOut() || result.getFailure() != null) {
+                    // The build fails anyway.
+                    break;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // Interrupting the others kills their processes, if they still run.
+            for (Future<ScriptResult> future : indexes.keySet()) {
+                future.cancel(true);
+            }
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = ScriptResult.cancelled();
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Delivers a single script to the node and runs it.
+     */
+    private ScriptResult runScript(Job<?, ?> job, FilePath ws, Node node, ScriptFragment fragment,
+            Launcher launcher, EnvVars env, TaskListener listener, ScriptTimings timings)
+            throws IOException, InterruptedException {
+        String script = fragment.getScript(), scriptType = fragment.getScriptType();
+        // Only the default shell is known to print what TrivialScript works out.
+        if (!isAlwaysLaunchScript() && launcher.isUnix() && !Commands.POWER_SHELL.equals(scriptType)
+                && !Commands.BATCH_SCRIPT.equals(scriptType) && !Commands.isShebangs(script)
+                && Interpreters.isDefaultShell()) {
+            ScriptResult result = evaluateTrivialScript(script, env, listener);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        String delivery = getScriptDelivery();
+        String[] daemon = isWarmInterpreter() ? buildDaemonCommandLine(script, scriptType, ws, listener) : null;
+        if (daemon == null && Commands.DELIVERY_STDIN.equals(delivery) && Commands.supportsStdin(scriptType, script)) {
+            // No file at all, the shell reads the script from its standard input.
+            return runScript(ws, UnixShell.buildStdinCommandLine(ws), script.getBytes(StandardCharsets.UTF_8),
+                    launcher, env, listener);
+        }
+
+        // First we create the script in a temporary directory.
+        FilePath scriptFile = null;
+        try {
+            long start = System.nanoTime();
+            FilePath cachedFile = null;
+            if (!Commands.DELIVERY_TEMP_FILE.equals(delivery) && node != null) {
+                // Reuse the copy of this script already written to the node.
+                cachedFile = ScriptFileCache.write(node, script, scriptType);
+            }
+
+            if (cachedFile == null) {
+                // Make sure prefix will always be more than 3 letters
+                // Replace the equals sign with an underscore because Windows doesn't accept
+                // this
+                final String prefix = "env-" + job.getName().replace("=", "_");
+                // Create a file in the system temporary directory with our script in it.
+                scriptFile = ws.createTextTempFile(prefix, Commands.getExtension(scriptType), script, false);
+            }
+            timings.recordSince(ScriptTimings.SCRIPT_FILE, start);
+
+            // Then we execute the script and parse what it prints.
+            FilePath file = cachedFile != null ? cachedFile : scriptFile;
+            if (daemon != null) {
+                return ws.act(new WarmScriptRunner(daemon, file.getRemote(), env, getOutputFormat(),
+                        getDescriptor().getMaxOutputSize(), getDescriptor().getMaxVariableSize(), timeout,
+                        listener));
+            }
+            return runScript(ws, buildCommandLine(script, scriptType, file), null, launcher, env, listener);
         } finally {
             // Make sure we clean scriptFile
             if (scriptFile != null && scriptFile.exists()) {
                 scriptFile.delete();
             }
         }
+    }
 
-        if (returnCode != 0) {
-            listener.fatalError(Messages.EnvironmentScriptWrapper_UnableToExecuteScript(returnCode));
+    /**
+     * @return The result of a script that does nothing but echo, worked out
+     *         without starting a shell, or null if it has to be launched.
+     */
+    private ScriptResult evaluateTrivialScript(String script, EnvVars env, TaskListener listener)
+            throws IOException {
+        TrivialScript trivial = TrivialScript.parse(script);
+        String printed = trivial == null ? null : trivial.evaluate(env);
+        if (printed == null) {
             return null;
         }
 
-        // Pass the output of the command to the Properties loader.
-        ByteArrayInputStream propertiesInput = new ByteArrayInputStream(commandOutput.toByteArray());
-        InputStreamReader propertiesInputReader = new InputStreamReader(propertiesInput, "UTF-8");
-        Properties properties = new Properties();
-        try {
-            properties.load(propertiesInputReader);
-        } catch (IOException e) {
-            Util.displayIOException(e, listener);
-            e.printStackTrace(listener.fatalError(Messages.EnvironmentScriptWrapper_UnableToParseScriptOutput()));
-            return null;
+        listener.getLogger().println("[environment-script] The script only echoes, evaluated it without a shell");
+        long start = System.nanoTime();
+        OutputParser output = OutputParser.create(getOutputFormat(), getDescriptor().getMaxOutputSize(),
+                getDescriptor().getMaxVariableSize());
+        output.write(printed.getBytes(StandardCharsets.UTF_8));
+        output.close();
+        return new ScriptResult(0, output, 0, System.nanoTime() - start, false);
+    }
+
+    /**
+     * @return The most recent environment known for this job: the cached
+     *         result, if there is one, or else the variables injected into the
+     *         last successful build. Null if there is neither.
+     */
+    private EnvironmentSnapshot getLastEnvironment(Run<?, ?> run, String cacheKey, TaskListener listener) {
+        if (cacheKey != null) {
+            // Expired or not, it's the best we have.
+            EnvironmentCache.Entry cached = EnvironmentCache.get().lookup(cacheKey, 0);
+            if (cached != null) {
+                listener.getLogger().println("[environment-script] Using the cached environment for key " + cacheKey);
+                return cached.getSnapshot();
+            }
         }
 
-        // We sort overrides and additions into two different buckets, because they have
-        // to be processed in sequence.
-        // See hudson.EnvVars.override for how this logic works.
-        final Map<String, String> envAdditions = new HashMap<String, String>(),
-                envOverrides = new HashMap<String, String>();
-        for (String key : properties.stringPropertyNames()) {
-            String value = properties.getProperty(key);
-            StringBuilder output = new StringBuilder();
-            output.append("[environment-script] Adding variable '").append(key).append("'");
+        Run<?, ?> previous = run.getPreviousSuccessfulBuild();
+        EnvironmentPluginAction action = previous == null ? null : previous.getAction(EnvironmentPluginAction.class);
+        if (action != null) {
+            listener.getLogger().println("[environment-script] Using the environment of "
+                    + previous.getFullDisplayName());
+            return action.getSnapshot();
+        }
 
-            // If hideGeneratedValue is set to true we will hide generated value from log
-            // message
-            if (!isHideEnvironmentVariablesValues()) {
-                output.append(" with value '").append(value).append("'");
-            }
+        return null;
+    }
+
+    private static String formatSeconds(long nanos) {
+        return String.format("%.1f s", nanos / 1e9);
+    }
+
+    /**
+     * Launches the script and parses its output, either here, with the output
+     * streamed over the channel, or entirely on the node that holds the
+     * workspace.
+     */
+    private ScriptResult runScript(FilePath ws, String[] cmds, byte[] stdin, Launcher launcher, EnvVars env,
+            TaskListener listener) throws IOException, InterruptedException {
+        long maxOutputSize = getDescriptor().getMaxOutputSize();
+        int maxVariableSize = getDescriptor().getMaxVariableSize();
 
-            listener.getLogger().println(output.toString());
+        if (isParseOnAgent()) {
+            return ws.act(new AgentScriptRunner(cmds, stdin, env, getOutputFormat(), maxOutputSize, maxVariableSize,
+                    timeout, listener));
+        }
 
-            if (key.indexOf('+') > 0)
-                envOverrides.put(key, value);
-            else
-                envAdditions.put(key, value);
+        // The output is parsed as it arrives, so it never has to be held in memory.
+        OutputParser output = OutputParser.create(getOutputFormat(), maxOutputSize, maxVariableSize);
+        Launcher.ProcStarter starter = launcher.launch().cmds(cmds);
+        if (stdin != null) {
+            starter.stdin(new ByteArrayInputStream(stdin));
         }
+        starter.envs(env)
+                .stderr(listener.getLogger())
+                .stdout(output)
+                .pwd(ws);
+        return AgentScriptRunner.run(starter, output, timeout);
+    }
+
+    /**
+     * Logs the variables we're about to inject, attaches them to the build and
+     * returns the {@link Environment} that applies them.
+     */
+    private Environment publishEnvironment(AbstractBuild<?, ?> build, final BuildListener listener,
+            EnvironmentSnapshot snapshot, ScriptTimings timings) {
+        long start = System.nanoTime();
+        logVariables(listener, snapshot);
+
+        EnvironmentPluginAction action = new EnvironmentPluginAction(snapshot);
+        build.addAction(action);
+        timings.recordSince(ScriptTimings.PUBLISHING, start);
 
-        build.addAction(new EnvironmentPluginAction(envAdditions, envOverrides));
+        return createEnvironment(action.getSnapshot());
+    }
 
+    /**
+     * @return An {@link Environment} that applies the snapshot. It only lives as
+     *         long as the build that uses it; the snapshot is what gets
+     *         persisted.
+     */
+    Environment createEnvironment(EnvironmentSnapshot snapshot) {
+        final EnvironmentSnapshot.Overlay overlay = snapshot.overlay();
         return new Environment() {
             @Override
             public void buildEnvVars(Map<String, String> env) {
-                // A little roundabout, but allows us to do overrides per
-                // how EnvVars#override works (PATH+unique=/foo/bar)
-                EnvVars envVars = new EnvVars(env);
-                envVars.putAll(envAdditions);
-                envVars.overrideAll(envOverrides);
-                env.putAll(envVars);
+                overlay.buildEnvVars(env);
             }
         };
     }
 
-    // Mostly stolen from hudson.tasks.Shell.buildCommandLine.
+    void logVariables(TaskListener listener, EnvironmentSnapshot snapshot) {
+        VariableLogger logger = new VariableLogger(listener.getLogger(), getDescriptor().getMaxLogSize(),
+                isHideEnvironmentVariablesValues());
+        String mode = getLogMode();
+        if (VariableLogger.MODE_SUMMARY.equals(mode)) {
+            logger.logSummary(snapshot.getEnvAdditions(), snapshot.getEnvOverrides(), getLogSummaryKeys());
+        } else if (VariableLogger.MODE_BATCHED.equals(mode)) {
+            logger.logBatched(snapshot.getEnvAdditions(), snapshot.getEnvOverrides());
+        } else {
+            logger.logFull(snapshot.getEnvAdditions(), snapshot.getEnvOverrides());
+        }
+    }
+
+    /**
+     * @throws UncheckedIOException If the interpreter does not exist on the
+     *                              node of scriptFile, or that can't be told.
+     */
     public String[] buildCommandLine(FilePath scriptFile) {
+        try {
+            return buildCommandLine(script, scriptType, scriptFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Mostly stolen from hudson.tasks.Shell.buildCommandLine.
+    static String[] buildCommandLine(String script, String scriptType, FilePath scriptFile)
+            throws IOException, InterruptedException {
         if (Commands.POWER_SHELL.equals(scriptType)) {
             return PowerShell.buildCommandLine(scriptFile);
         } else if (Commands.BATCH_SCRIPT.equals(scriptType)) {
             return WinBatch.buildCommandLine(scriptFile);
         } else {
             if (Commands.isShebangs(script)) {
-                return Shebangs.parseCommandLine(script, scriptFile);
+                return Shebangs.resolveCommandLine(script, scriptFile);
             }
-            return UnixShell.buildCommandLine(scriptFile);
+            return UnixShell.resolveCommandLine(scriptFile);
+        }
+    }
+
+    /**
+     * @return The command line of an interpreter that can be kept running for
+     *         this script on the node of ws, or null if there is none.
+     */
+    static String[] buildDaemonCommandLine(String script, String scriptType, FilePath ws, TaskListener listener)
+            throws IOException, InterruptedException {
+        if (Commands.POWER_SHELL.equals(scriptType)) {
+            return PowerShell.buildDaemonCommandLine();
+        } else if (Commands.BATCH_SCRIPT.equals(scriptType) || Commands.isShebangs(script)) {
+            return null;
+        }
+        String shell = Interpreters.getShell(ws.getChannel());
+        String[] daemon = UnixShell.buildDaemonCommandLine(shell);
+        if (daemon == null) {
+            listener.getLogger().println("[environment-script] The configured shell " + shell
+                    + " is not bash, which a warm interpreter needs, starting the script as usual");
         }
+        return daemon;
     }
 
     /**
      * Create an aggregator that will calculate the environment once if
-     * onlyRunOnParent is true.
+     * onlyRunOnParent is true, or let the configuration runs share it if
+     * sharedBy is set.
      *
      * The aggregator we return is called on the parent job for matrix jobs. In it
      * we generate the environment once and
@@ -244,27 +1454,47 @@ public class EnvironmentScript extends BuildWrapper implements MatrixAggregatabl
      */
     public MatrixAggregator createAggregator(MatrixBuild build, Launcher launcher, BuildListener listener) {
         if (!isRunOnlyOnParent()) {
-            return null;
+            if (getSharedBy() == null) {
+                return null;
+            }
+
+            // The configuration runs generate the environments, the parent only
+            // holds them.
+            return new MatrixAggregator(build, launcher, listener) {
+                @Override
+                public boolean startBuild() {
+                    build.addAction(new SharedEnvironment());
+                    return true;
+                }
+            };
         }
 
         return new MatrixAggregator(build, launcher, listener) {
             @Override
             public boolean startBuild() throws InterruptedException, IOException {
-                Environment env = generateEnvironment(build, launcher, listener);
-                if (env == null) {
-                    return false;
-                }
+                ScriptTimings timings = new ScriptTimings();
+                try {
+                    EnvironmentSnapshot snapshot = generateSnapshot(build, launcher, listener, timings);
+                    if (snapshot == null) {
+                        return false;
+                    }
 
-                build.addAction(new PersistedEnvironment(env));
-                build.getEnvironments().add(env);
+                    build.getEnvironments().add(publishEnvironment(build, listener, snapshot, timings));
+                    build.addAction(new PersistedEnvironment(snapshot));
+                } finally {
+                    recordTimings(build, timings);
+                }
+                // Save it right away rather than when the parent completes, so the
+                // snapshot is on disk before any configuration run needs it.
+                build.save();
                 return true;
             }
         };
     }
 
     @Override
-    public Descriptor<BuildWrapper> getDescriptor() {
-        return super.getDescriptor();
+    public EnvironmentScriptDescriptor getDescriptor() {
+        return (EnvironmentScriptDescriptor) super.getDescriptor();
     }
 
     /**
@@ -275,6 +1505,16 @@ public class EnvironmentScript extends BuildWrapper implements MatrixAggregatabl
      */
     @Extension
     public static final class EnvironmentScriptDescriptor extends BuildWrapperDescriptor {
+        private int cacheSize = 100;
+        private long maxOutputSize;
+        // Well above the 128 KiB Linux allows for a single variable passed to a
+        // process.
+        private int maxVariableSize = 1024 * 1024;
+        private long maxLogSize = 1024 * 1024;
+        private int maxConcurrentScripts;
+        private String concurrencyScope;
+        private int circuitBreakerThreshold;
+        private int circuitBreakerCooldown = 60;
 
         public EnvironmentScriptDescriptor() {
             super(EnvironmentScript.class);
@@ -298,6 +1538,126 @@ public class EnvironmentScript extends BuildWrapper implements MatrixAggregatabl
             return Boolean.FALSE;
         }
 
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws Descriptor.FormException {
+            req.bindJSON(this, json);
+            save();
+            return true;
+        }
+
+        /**
+         * @return The maximum number of entries kept in {@link EnvironmentCache}.
+         */
+        public int getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(int cacheSize) {
+            this.cacheSize = Math.max(cacheSize, 0);
+        }
+
+        /**
+         * @return The maximum number of bytes a script may print before the build
+         *         is failed, or zero for no limit.
+         */
+        public long getMaxOutputSize() {
+            return maxOutputSize;
+        }
+
+        public void setMaxOutputSize(long maxOutputSize) {
+            this.maxOutputSize = Math.max(maxOutputSize, 0);
+        }
+
+        /**
+         * @return The maximum number of characters of a single variable in the
+         *         script output before the build is failed, or zero for no
+         *         limit.
+         */
+        public int getMaxVariableSize() {
+            return maxVariableSize;
+        }
+
+        public void setMaxVariableSize(int maxVariableSize) {
+            this.maxVariableSize = Math.max(maxVariableSize, 0);
+        }
+
+        /**
+         * @return The maximum number of bytes written to the console when logging
+         *         the variables of a build, or zero for no limit.
+         */
+        public long getMaxLogSize() {
+            return maxLogSize;
+        }
+
+        public void setMaxLogSize(long maxLogSize) {
+            this.maxLogSize = Math.max(maxLogSize, 0);
+        }
+
+        /**
+         * @return How many scripts may run at the same time within the
+         *         {@link #getConcurrencyScope() scope}, or zero for no limit.
+         */
+        public int getMaxConcurrentScripts() {
+            return maxConcurrentScripts;
+        }
+
+        public void setMaxConcurrentScripts(int maxConcurrentScripts) {
+            this.maxConcurrentScripts = Math.max(maxConcurrentScripts, 0);
+        }
+
+        /**
+         * @return What {@link #getMaxConcurrentScripts()} applies to, one of the
+         *         SCOPE_ constants in {@link ScriptThrottle}.
+         */
+        public String getConcurrencyScope() {
+            return concurrencyScope == null ? ScriptThrottle.SCOPE_CONTROLLER : concurrencyScope;
+        }
+
+        public void setConcurrencyScope(String concurrencyScope) {
+            this.concurrencyScope = Util.fixEmpty(concurrencyScope);
+        }
+
+        /**
+         * @return After how many builds in a row that a script failed in
+         *         {@link ScriptCircuitBreaker} stops running it, or zero to
+         *         always run scripts.
+         */
+        public int getCircuitBreakerThreshold() {
+            return circuitBreakerThreshold;
+        }
+
+        public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+            this.circuitBreakerThreshold = Math.max(circuitBreakerThreshold, 0);
+        }
+
+        /**
+         * @return How many seconds an open circuit stops a script from running
+         *         before a build tries it again.
+         */
+        public int getCircuitBreakerCooldown() {
+            return circuitBreakerCooldown;
+        }
+
+        public void setCircuitBreakerCooldown(int circuitBreakerCooldown) {
+            this.circuitBreakerCooldown = Math.max(circuitBreakerCooldown, 0);
+        }
+
+        public ListBoxModel doFillConcurrencyScopeItems() {
+            ListBoxModel items = new ListBoxModel(
+                    new ListBoxModel.Option(ScriptThrottle.SCOPE_CONTROLLER_DISPLAY_NAME,
+                            ScriptThrottle.SCOPE_CONTROLLER),
+                    new ListBoxModel.Option(ScriptThrottle.SCOPE_LABEL_DISPLAY_NAME, ScriptThrottle.SCOPE_LABEL),
+                    new ListBoxModel.Option(ScriptThrottle.SCOPE_GROUP_DISPLAY_NAME, ScriptThrottle.SCOPE_GROUP));
+            return items;
+        }
+
+        public FormValidation doCheckCacheTtl(@QueryParameter int value) {
+            if (value < 0) {
+                return FormValidation.error("The time to live cannot be negative");
+            }
+            return FormValidation.ok();
+        }
+
         public ListBoxModel doFillScriptTypeItems() {
             ListBoxModel items = new ListBoxModel(
                     new ListBoxModel.Option(Commands.UNIX_SCRIPT_DISPLAY_NAME, Commands.UNIX_SCRIPT),
@@ -305,5 +1665,70 @@ public class EnvironmentScript extends BuildWrapper implements MatrixAggregatabl
                     new ListBoxModel.Option(Commands.POWER_SHELL_DISPLAY_NAME, Commands.POWER_SHELL));
             return items;
         }
+
+        public ListBoxModel doFillScriptDeliveryItems() {
+            ListBoxModel items = new ListBoxModel(
+                    new ListBoxModel.Option(Commands.DELIVERY_TEMP_FILE_DISPLAY_NAME, Commands.DELIVERY_TEMP_FILE),
+                    new ListBoxModel.Option(Commands.DELIVERY_CACHED_FILE_DISPLAY_NAME, Commands.DELIVERY_CACHED_FILE),
+                    new ListBoxModel.Option(Commands.DELIVERY_STDIN_DISPLAY_NAME, Commands.DELIVERY_STDIN));
+            return items;
+        }
+
+        public ListBoxModel doFillOutputFormatItems() {
+            ListBoxModel items = new ListBoxModel(
+                    new ListBoxModel.Option(OutputParser.FORMAT_PROPERTIES_DISPLAY_NAME, OutputParser.FORMAT_PROPERTIES),
+                    new ListBoxModel.Option(OutputParser.FORMAT_JSON_DISPLAY_NAME, OutputParser.FORMAT_JSON),
+                    new ListBoxModel.Option(OutputParser.FORMAT_NUL_DISPLAY_NAME, OutputParser.FORMAT_NUL));
+            return items;
+        }
+
+        public ListBoxModel doFillSharedByItems() {
+            ListBoxModel items = new ListBoxModel(
+                    new ListBoxModel.Option(SharedEnvironment.SHARE_NONE_DISPLAY_NAME, ""),
+                    new ListBoxModel.Option(SharedEnvironment.SHARE_NODE_DISPLAY_NAME, SharedEnvironment.SHARE_NODE),
+                    new ListBoxModel.Option(SharedEnvironment.SHARE_AXES_DISPLAY_NAME, SharedEnvironment.SHARE_AXES));
+            return items;
+        }
+
+        public ListBoxModel doFillFallbackPolicyItems() {
+            ListBoxModel items = new ListBoxModel(
+                    new ListBoxModel.Option(FALLBACK_FAIL_DISPLAY_NAME, FALLBACK_FAIL),
+                    new ListBoxModel.Option(FALLBACK_LAST_ENVIRONMENT_DISPLAY_NAME, FALLBACK_LAST_ENVIRONMENT));
+            return items;
+        }
+
+        public FormValidation doCheckTimeout(@QueryParameter int value) {
+            if (value < 0) {
+                return FormValidation.error("The timeout cannot be negative");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckRetryExitCodes(@QueryParameter String value) {
+            for (String code : Util.tokenize(Util.fixNull(value), ", \t\r\n")) {
+                try {
+                    Integer.parseInt(code);
+                } catch (NumberFormatException e) {
+                    return FormValidation.error("Not an exit code: " + code);
+                }
+            }
+            return FormValidation.ok();
+        }
+
+        public ListBoxModel doFillConflictPolicyItems() {
+            ListBoxModel items = new ListBoxModel(
+                    new ListBoxModel.Option(CONFLICT_LAST_WINS_DISPLAY_NAME, CONFLICT_LAST_WINS),
+                    new ListBoxModel.Option(CONFLICT_FIRST_WINS_DISPLAY_NAME, CONFLICT_FIRST_WINS),
+                    new ListBoxModel.Option(CONFLICT_FAIL_DISPLAY_NAME, CONFLICT_FAIL));
+            return items;
+        }
+
+        public ListBoxModel doFillLogModeItems() {
+            ListBoxModel items = new ListBoxModel(
+                    new ListBoxModel.Option(VariableLogger.MODE_FULL_DISPLAY_NAME, VariableLogger.MODE_FULL),
+                    new ListBoxModel.Option(VariableLogger.MODE_BATCHED_DISPLAY_NAME, VariableLogger.MODE_BATCHED),
+                    new ListBoxModel.Option(VariableLogger.MODE_SUMMARY_DISPLAY_NAME, VariableLogger.MODE_SUMMARY));
+            return items;
+        }
     }
 }
@@ -0,0 +1,180 @@
+package com.lookout.jenkins;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Controller-wide aggregates of {@link ScriptTimings}, served in the
+ * Prometheus text format at <tt>/environment-script-metrics/</tt> to anyone
+ * allowed to read the system configuration.
+ *
+ * Durations are kept for the most recent {@link #SAMPLES} runs of each job,
+ * and {@link #PHASE_SAMPLES} of each phase of each job, from which the
+ * quantiles are computed. Counters start from zero whenever the controller
+ * restarts.
+ */
+@Extension
+public class EnvironmentScriptMetrics implements RootAction {
+    public static final String URL_NAME = "environment-script-metrics";
+
+    static final int SAMPLES = 512;
+
+    // A job has about ten phases, so fewer of them are kept.
+    static final int PHASE_SAMPLES = 64;
+
+    private static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+
+    private final Map<String, Samples> jobDurations = new ConcurrentSkipListMap<String, Samples>();
+    private final Map<String, Map<String, Samples>> phaseDurations =
+            new ConcurrentSkipListMap<String, Map<String, Samples>>();
+    private final Map<String, AtomicLong> outputBytes = new ConcurrentSkipListMap<String, AtomicLong>();
+    private final Map<String, AtomicLong> failures = new ConcurrentSkipListMap<String, AtomicLong>();
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    public static EnvironmentScriptMetrics get() {
+        return ExtensionList.lookupSingleton(EnvironmentScriptMetrics.class);
+    }
+
+    public void record(String job, ScriptTimings timings) {
+        jobDurations.computeIfAbsent(job, k -> new Samples(SAMPLES)).add(timings.getTotalNanos());
+        Map<String, Samples> phases = phaseDurations.computeIfAbsent(job,
+                k -> new ConcurrentSkipListMap<String, Samples>());
+        for (Map.Entry<String, Long> phase : timings.getPhases().entrySet()) {
+            phases.computeIfAbsent(phase.getKey(), k -> new Samples(PHASE_SAMPLES)).add(phase.getValue());
+        }
+        outputBytes.computeIfAbsent(job, k -> new AtomicLong()).addAndGet(timings.getOutputBytes());
+        if (timings.getFailure() != null) {
+            failures.computeIfAbsent(timings.getFailure(), k -> new AtomicLong()).incrementAndGet();
+        }
+        if (timings.isCached()) {
+            cacheHits.incrementAndGet();
+        }
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Environment Script Metrics";
+    }
+
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter writer = rsp.getWriter();
+        write(writer);
+        writer.flush();
+    }
+
+    void write(PrintWriter writer) {
+        writer.println("# HELP environment_script_duration_seconds Time taken to generate the environment of a build.");
+        writer.println("# TYPE environment_script_duration_seconds summary");
+        for (Map.Entry<String, Samples> job : jobDurations.entrySet()) {
+            job.getValue().write(writer, "environment_script_duration_seconds",
+                    "job=\"" + escape(job.getKey()) + "\"");
+        }
+
+        writer.println("# HELP environment_script_phase_duration_seconds Time taken by each phase of generating an environment.");
+        writer.println("# TYPE environment_script_phase_duration_seconds summary");
+        for (Map.Entry<String, Map<String, Samples>> job : phaseDurations.entrySet()) {
+            for (Map.Entry<String, Samples> phase : job.getValue().entrySet()) {
+                phase.getValue().write(writer, "environment_script_phase_duration_seconds",
+                        "job=\"" + escape(job.getKey()) + "\",phase=\""
+                                + escape(phase.getKey().toLowerCase(Locale.ENGLISH).replace(' ', '_')) + "\"");
+            }
+        }
+
+        writer.println("# HELP environment_script_output_bytes_total Bytes written by environment scripts.");
+        writer.println("# TYPE environment_script_output_bytes_total counter");
+        for (Map.Entry<String, AtomicLong> job : outputBytes.entrySet()) {
+            writer.println("environment_script_output_bytes_total{job=\"" + escape(job.getKey()) + "\"} "
+                    + job.getValue().get());
+        }
+
+        writer.println("# HELP environment_script_failures_total Builds whose environment could not be generated.");
+        writer.println("# TYPE environment_script_failures_total counter");
+        for (Map.Entry<String, AtomicLong> type : failures.entrySet()) {
+            writer.println("environment_script_failures_total{type=\"" + escape(type.getKey()) + "\"} "
+                    + type.getValue().get());
+        }
+
+        writer.println("# HELP environment_script_cache_hits_total Builds that reused a cached environment.");
+        writer.println("# TYPE environment_script_cache_hits_total counter");
+        writer.println("environment_script_cache_hits_total " + cacheHits.get());
+    }
+
+    /**
+     * Escapes a label value as the Prometheus text format requires.
+     */
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * The most recent durations, up to a limit, plus a count and sum over all
+     * of them.
+     */
+    static final class Samples {
+        private final long[] ring;
+        private long count;
+        private long sum;
+
+        Samples(int size) {
+            ring = new long[size];
+        }
+
+        synchronized void add(long nanos) {
+            ring[(int) (count % ring.length)] = nanos;
+            count++;
+            sum += nanos;
+        }
+
+        /**
+         * @return The quantile q of the retained samples, by the nearest-rank
+         *         method.
+         */
+        synchronized long quantile(double q) {
+            int size = (int) Math.min(count, ring.length);
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(ring, size);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(q * size);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+
+        /**
+         * @param labels The labels of the series, already escaped.
+         */
+        synchronized void write(PrintWriter writer, String name, String labels) {
+            for (double q : QUANTILES) {
+                writer.println(name + "{" + labels + ",quantile=\"" + q + "\"} " + seconds(quantile(q)));
+            }
+            writer.println(name + "_sum{" + labels + "} " + seconds(sum));
+            writer.println(name + "_count{" + labels + "} " + count);
+        }
+    }
+}
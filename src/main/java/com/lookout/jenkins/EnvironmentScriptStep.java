@@ -0,0 +1,364 @@
+package com.lookout.jenkins;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.EnvironmentExpander;
+import org.jenkinsci.plugins.workflow.steps.GeneralNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.lookout.jenkins.commands.Commands;
+
+/**
+ * The Pipeline counterpart of {@link EnvironmentScript}:
+ *
+ * <pre>
+ * withEnvironmentScript(script: 'echo FOO=bar') {
+ *     sh 'echo $FOO'
+ * }
+ * </pre>
+ *
+ * The script runs in the current workspace, and the variables it prints are
+ * only set inside the block, with <tt>PATH+X</tt> style overrides applied the
+ * same way as for freestyle builds.
+ */
+public class EnvironmentScriptStep extends Step {
+    private final String script;
+    private String scriptType;
+    private boolean hideEnvironmentVariablesValues;
+    private boolean parseOnAgent;
+    private boolean warmInterpreter;
+    private boolean alwaysLaunchScript;
+    private String scriptDelivery;
+    private String outputFormat;
+    private int timeout;
+    private int maxAttempts;
+    private Integer retryDelay;
+    private String retryExitCodes;
+    private String logMode;
+    private boolean injectChangedOnly;
+    private String concurrencyGroup;
+
+    @DataBoundConstructor
+    public EnvironmentScriptStep(String script) {
+        this.script = script;
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    /**
+     * @return The type of the script, or null to use a Unix script on Unix
+     *         nodes and a batch script elsewhere.
+     */
+    public String getScriptType() {
+        return scriptType;
+    }
+
+    @DataBoundSetter
+    public void setScriptType(String scriptType) {
+        this.scriptType = Util.fixEmpty(scriptType);
+    }
+
+    public boolean isHideEnvironmentVariablesValues() {
+        return hideEnvironmentVariablesValues;
+    }
+
+    @DataBoundSetter
+    public void setHideEnvironmentVariablesValues(boolean hideEnvironmentVariablesValues) {
+        this.hideEnvironmentVariablesValues = hideEnvironmentVariablesValues;
+    }
+
+    public boolean isParseOnAgent() {
+        return parseOnAgent;
+    }
+
+    @DataBoundSetter
+    public void setParseOnAgent(boolean parseOnAgent) {
+        this.parseOnAgent = parseOnAgent;
+    }
+
+    public boolean isWarmInterpreter() {
+        return warmInterpreter;
+    }
+
+    @DataBoundSetter
+    public void setWarmInterpreter(boolean warmInterpreter) {
+        this.warmInterpreter = warmInterpreter;
+    }
+
+    public boolean isAlwaysLaunchScript() {
+        return alwaysLaunchScript;
+    }
+
+    @DataBoundSetter
+    public void setAlwaysLaunchScript(boolean alwaysLaunchScript) {
+        this.alwaysLaunchScript = alwaysLaunchScript;
+    }
+
+    public String getScriptDelivery() {
+        return scriptDelivery;
+    }
+
+    @DataBoundSetter
+    public void setScriptDelivery(String scriptDelivery) {
+        this.scriptDelivery = Util.fixEmpty(scriptDelivery);
+    }
+
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    @DataBoundSetter
+    public void setOutputFormat(String outputFormat) {
+        this.outputFormat = Util.fixEmpty(outputFormat);
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @DataBoundSetter
+    public void setTimeout(int timeout) {
+        this.timeout = Math.max(timeout, 0);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    @DataBoundSetter
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(maxAttempts, 0);
+    }
+
+    public int getRetryDelay() {
+        return retryDelay == null ? EnvironmentScript.DEFAULT_RETRY_DELAY : retryDelay;
+    }
+
+    @DataBoundSetter
+    public void setRetryDelay(int retryDelay) {
+        this.retryDelay = Math.max(retryDelay, 0);
+    }
+
+    public String getRetryExitCodes() {
+        return retryExitCodes;
+    }
+
+    @DataBoundSetter
+    public void setRetryExitCodes(String retryExitCodes) {
+        this.retryExitCodes = Util.fixEmptyAndTrim(retryExitCodes);
+    }
+
+    public String getLogMode() {
+        return logMode;
+    }
+
+    @DataBoundSetter
+    public void setLogMode(String logMode) {
+        this.logMode = Util.fixEmpty(logMode);
+    }
+
+    public boolean isInjectChangedOnly() {
+        return injectChangedOnly;
+    }
+
+    @DataBoundSetter
+    public void setInjectChangedOnly(boolean injectChangedOnly) {
+        this.injectChangedOnly = injectChangedOnly;
+    }
+
+    public String getConcurrencyGroup() {
+        return concurrencyGroup;
+    }
+
+    @DataBoundSetter
+    public void setConcurrencyGroup(String concurrencyGroup) {
+        this.concurrencyGroup = Util.fixEmptyAndTrim(concurrencyGroup);
+    }
+
+    /**
+     * @return A build wrapper configured like this step, which does the actual
+     *         work.
+     */
+    EnvironmentScript createWrapper(boolean isUnix) {
+        String type = scriptType;
+        if (type == null) {
+            type = isUnix ? Commands.UNIX_SCRIPT : Commands.BATCH_SCRIPT;
+        }
+        EnvironmentScript wrapper = new EnvironmentScript(script, type, false, hideEnvironmentVariablesValues);
+        wrapper.setParseOnAgent(parseOnAgent);
+        wrapper.setWarmInterpreter(warmInterpreter);
+        wrapper.setAlwaysLaunchScript(alwaysLaunchScript);
+        wrapper.setScriptDelivery(scriptDelivery);
+        wrapper.setOutputFormat(outputFormat);
+        wrapper.setTimeout(timeout);
+        wrapper.setMaxAttempts(maxAttempts);
+        wrapper.setRetryDelay(getRetryDelay());
+        wrapper.setRetryExitCodes(retryExitCodes);
+        wrapper.setLogMode(logMode);
+        wrapper.setInjectChangedOnly(injectChangedOnly);
+        wrapper.setConcurrencyGroup(concurrencyGroup);
+        return wrapper;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) {
+        return new Execution(this, context);
+    }
+
+    /**
+     * Runs the script on a background thread, so the CPS VM thread is free
+     * while it runs, then starts the body with the generated variables.
+     */
+    static final class Execution extends GeneralNonBlockingStepExecution {
+        private static final long serialVersionUID = 1L;
+
+        private final transient EnvironmentScriptStep step;
+        private boolean bodyStarted;
+
+        Execution(EnvironmentScriptStep step, StepContext context) {
+            super(context);
+            this.step = step;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            run(this::generate);
+            return false;
+        }
+
+        private void generate() throws Exception {
+            StepContext context = getContext();
+            Run<?, ?> run = context.get(Run.class);
+            FilePath ws = context.get(FilePath.class);
+            Launcher launcher = context.get(Launcher.class);
+            TaskListener listener = context.get(TaskListener.class);
+
+            EnvironmentScript wrapper = step.createWrapper(launcher.isUnix());
+            ScriptTimings timings = new ScriptTimings();
+            EnvironmentSnapshot snapshot;
+            try {
+                snapshot = wrapper.generateSnapshot(run, ws, launcher, context.get(EnvVars.class), listener,
+                        timings);
+                if (snapshot != null) {
+                    long start = System.nanoTime();
+                    wrapper.logVariables(listener, snapshot);
+                    timings.recordSince(ScriptTimings.PUBLISHING, start);
+                }
+            } finally {
+                EnvironmentScript.recordTimings(run, timings);
+            }
+
+            if (snapshot == null) {
+                // What went wrong has already been logged.
+                throw new AbortException("Unable to generate environment variables from script");
+            }
+
+            bodyStarted = true;
+            context.newBodyInvoker()
+                    .withContext(EnvironmentExpander.merge(context.get(EnvironmentExpander.class),
+                            new SnapshotExpander(snapshot)))
+                    .withCallback(BodyExecutionCallback.wrap(context))
+                    .start();
+        }
+
+        @Override
+        public void onResume() {
+            // The thread running the script did not survive the restart; once the
+            // body runs there is nothing left for us to do.
+            if (!bodyStarted) {
+                getContext().onFailure(new AbortException("Jenkins was restarted while the environment script ran"));
+            }
+        }
+    }
+
+    /**
+     * Applies the generated variables to the environment of the body.
+     */
+    private static final class SnapshotExpander extends EnvironmentExpander {
+        private static final long serialVersionUID = 1L;
+
+        private final EnvironmentSnapshot snapshot;
+        private transient volatile EnvironmentSnapshot.Overlay overlay;
+
+        SnapshotExpander(EnvironmentSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public void expand(EnvVars env) {
+            EnvironmentSnapshot.Overlay overlay = this.overlay;
+            if (overlay == null) {
+                overlay = snapshot.overlay();
+                this.overlay = overlay;
+            }
+            overlay.buildEnvVars(env);
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+        @Override
+        public String getFunctionName() {
+            return "withEnvironmentScript";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Generate environment variables from script";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Collections.unmodifiableSet(new HashSet<Class<?>>(Arrays.asList(Run.class, FilePath.class,
+                    Launcher.class, EnvVars.class, TaskListener.class)));
+        }
+
+        private static EnvironmentScript.EnvironmentScriptDescriptor wrapperDescriptor() {
+            return Jenkins.get().getDescriptorByType(EnvironmentScript.EnvironmentScriptDescriptor.class);
+        }
+
+        public ListBoxModel doFillScriptTypeItems() {
+            ListBoxModel items = wrapperDescriptor().doFillScriptTypeItems();
+            items.add(0, new ListBoxModel.Option("Depending on the node", ""));
+            return items;
+        }
+
+        public ListBoxModel doFillScriptDeliveryItems() {
+            return wrapperDescriptor().doFillScriptDeliveryItems();
+        }
+
+        public ListBoxModel doFillOutputFormatItems() {
+            return wrapperDescriptor().doFillOutputFormatItems();
+        }
+
+        public ListBoxModel doFillLogModeItems() {
+            return wrapperDescriptor().doFillLogModeItems();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.lookout.jenkins;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import hudson.EnvVars;
+import hudson.Util;
+
+/**
+ * Immutable set of variables produced by an environment script.
+ *
+ * Additions are put into the environment as they are, overrides (keys like
+ * <tt>PATH+FOO</tt>) are applied afterwards as described in
+ * {@link EnvVars#override(String, String)}. Both are kept as sorted arrays of
+ * keys and values, which holds no reference to the script or the build that
+ * produced them, so a snapshot can be persisted with a build and shared by
+ * any number of runs.
+ */
+public final class EnvironmentSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final EnvironmentSnapshot EMPTY = new EnvironmentSnapshot(
+            Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap());
+
+    // Each interned snapshot, weakly referenced so it goes away with the last
+    // build that holds it.
+    private static final Map<EnvironmentSnapshot, WeakReference<EnvironmentSnapshot>> INTERNED =
+            new WeakHashMap<EnvironmentSnapshot, WeakReference<EnvironmentSnapshot>>();
+
+    private final String[] additionKeys;
+    private final String[] additionValues;
+    private final String[] overrideKeys;
+    private final String[] overrideValues;
+
+    public EnvironmentSnapshot(Map<String, String> envAdditions, Map<String, String> envOverrides) {
+        SortedMap<String, String> additions = new TreeMap<String, String>(envAdditions);
+        additionKeys = additions.keySet().toArray(new String[0]);
+        additionValues = additions.values().toArray(new String[0]);
+
+        SortedMap<String, String> overrides = new TreeMap<String, String>(envOverrides);
+        overrideKeys = overrides.keySet().toArray(new String[0]);
+        overrideValues = overrides.values().toArray(new String[0]);
+    }
+
+    private EnvironmentSnapshot(String[] additionKeys, String[] additionValues, String[] overrideKeys,
+            String[] overrideValues) {
+        this.additionKeys = additionKeys;
+        this.additionValues = additionValues;
+        this.overrideKeys = overrideKeys;
+        this.overrideValues = overrideValues;
+    }
+
+    /**
+     * Sorts script output into additions and overrides. They have to be kept
+     * apart because overrides are applied after the additions, see
+     * {@link EnvVars#override(String, String)}.
+     */
+    public static EnvironmentSnapshot of(Map<String, String> variables) {
+        Map<String, String> envAdditions = new TreeMap<String, String>(),
+                envOverrides = new TreeMap<String, String>();
+        for (Map.Entry<String, String> variable : variables.entrySet()) {
+            if (variable.getKey().indexOf('+') > 0)
+                envOverrides.put(variable.getKey(), variable.getValue());
+            else
+                envAdditions.put(variable.getKey(), variable.getValue());
+        }
+        return new EnvironmentSnapshot(envAdditions, envOverrides);
+    }
+
+    public Map<String, String> getEnvAdditions() {
+        return toMap(additionKeys, additionValues);
+    }
+
+    public Map<String, String> getEnvOverrides() {
+        return toMap(overrideKeys, overrideValues);
+    }
+
+    public int size() {
+        return additionKeys.length + overrideKeys.length;
+    }
+
+    /**
+     * @return The number of characters in all keys and values.
+     */
+    public int length() {
+        int length = 0;
+        for (String[] strings : new String[][] { additionKeys, additionValues, overrideKeys, overrideValues }) {
+            for (String string : strings) {
+                length += string.length();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Builds of the same job mostly inject the same variables, often with the
+     * same values, so the builds kept in memory can share one copy of them.
+     *
+     * @return An equal snapshot that is shared by everything that interned an
+     *         equal one, and whose keys and values are interned strings.
+     */
+    public EnvironmentSnapshot intern() {
+        synchronized (INTERNED) {
+            WeakReference<EnvironmentSnapshot> existing = INTERNED.get(this);
+            EnvironmentSnapshot interned = existing == null ? null : existing.get();
+            if (interned == null) {
+                interned = new EnvironmentSnapshot(intern(additionKeys), intern(additionValues),
+                        intern(overrideKeys), intern(overrideValues));
+                INTERNED.put(interned, new WeakReference<EnvironmentSnapshot>(interned));
+            }
+            return interned;
+        }
+    }
+
+    private static String[] intern(String[] strings) {
+        String[] interned = new String[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            interned[i] = Util.intern(strings[i]);
+        }
+        return interned;
+    }
+
+    /**
+     * @return This snapshot without the additions env already has with the same
+     *         value. Overrides are always kept, since they are applied on top of
+     *         the existing value.
+     */
+    public EnvironmentSnapshot withoutUnchanged(Map<String, String> env) {
+        SortedMap<String, String> additions = new TreeMap<String, String>();
+        for (int i = 0; i < additionKeys.length; i++) {
+            if (!additionValues[i].equals(env.get(additionKeys[i]))) {
+                additions.put(additionKeys[i], additionValues[i]);
+            }
+        }
+        if (additions.size() == additionKeys.length) {
+            return this;
+        }
+        return new EnvironmentSnapshot(additions, getEnvOverrides());
+    }
+
+    /**
+     * Applies these variables to env, changing only the variables they set.
+     */
+    public void buildEnvVars(Map<String, String> env) {
+        for (int i = 0; i < additionKeys.length; i++) {
+            env.put(additionKeys[i], additionValues[i]);
+        }
+        for (int i = 0; i < overrideKeys.length; i++) {
+            override(env, overrideKeys[i], overrideValues[i]);
+        }
+    }
+
+    /**
+     * @return An overlay applying these variables, for an environment that is
+     *         built over and over, such as that of a running build.
+     */
+    public Overlay overlay() {
+        return new Overlay(this);
+    }
+
+    /**
+     * Applies an override like {@link EnvVars#override(String, String)} does,
+     * without copying env into an {@link EnvVars} first.
+     */
+    private static void override(Map<String, String> env, String key, String value) {
+        if (env instanceof EnvVars) {
+            // Only EnvVars knows the path separator of the node it was made for.
+            ((EnvVars) env).override(key, value);
+        } else if (value.isEmpty()) {
+            env.remove(key);
+        } else {
+            String target = key.substring(0, key.indexOf('+'));
+            String current = env.get(target);
+            env.put(target, current == null ? value : value + File.pathSeparatorChar + current);
+        }
+    }
+
+    /**
+     * Applies a snapshot to the environment of one build. Jenkins rebuilds
+     * that environment on every call to getEnvironment, from the same
+     * inherited values, so the overlay remembers what each override resolved
+     * to and puts the same string back as long as the value it overrides did
+     * not change, instead of concatenating a new one every time.
+     */
+    public static final class Overlay {
+        private final EnvironmentSnapshot snapshot;
+        private final String[] targets;
+        // For each override, the value it was last applied to and the result.
+        private final AtomicReferenceArray<String[]> resolved;
+
+        Overlay(EnvironmentSnapshot snapshot) {
+            this.snapshot = snapshot;
+            targets = new String[snapshot.overrideKeys.length];
+            for (int i = 0; i < targets.length; i++) {
+                String key = snapshot.overrideKeys[i];
+                targets[i] = key.substring(0, key.indexOf('+'));
+            }
+            resolved = new AtomicReferenceArray<String[]>(targets.length);
+        }
+
+        public EnvironmentSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        public void buildEnvVars(Map<String, String> env) {
+            for (int i = 0; i < snapshot.additionKeys.length; i++) {
+                env.put(snapshot.additionKeys[i], snapshot.additionValues[i]);
+            }
+            for (int i = 0; i < targets.length; i++) {
+                String value = snapshot.overrideValues[i];
+                if (value.isEmpty()) {
+                    override(env, snapshot.overrideKeys[i], value);
+                    continue;
+                }
+
+                String current = env.get(targets[i]);
+                String[] last = resolved.get(i);
+                if (last != null && Objects.equals(last[0], current)) {
+                    env.put(targets[i], last[1]);
+                } else {
+                    override(env, snapshot.overrideKeys[i], value);
+                    resolved.set(i, new String[] { current, env.get(targets[i]) });
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> toMap(String[] keys, String[] values) {
+        SortedMap<String, String> map = new TreeMap<String, String>();
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], values[i]);
+        }
+        return Collections.unmodifiableSortedMap(map);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof EnvironmentSnapshot)) {
+            return false;
+        }
+        EnvironmentSnapshot other = (EnvironmentSnapshot) o;
+        return Arrays.equals(additionKeys, other.additionKeys) && Arrays.equals(additionValues, other.additionValues)
+                && Arrays.equals(overrideKeys, other.overrideKeys)
+                && Arrays.equals(overrideValues, other.overrideValues);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Arrays.hashCode(additionKeys);
+        result = 31 * result + Arrays.hashCode(additionValues);
+        result = 31 * result + Arrays.hashCode(overrideKeys);
+        result = 31 * result + Arrays.hashCode(overrideValues);
+        return result;
+    }
+}
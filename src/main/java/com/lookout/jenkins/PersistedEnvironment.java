@@ -3,15 +3,36 @@ package com.lookout.jenkins;
 import hudson.model.Action;
 import hudson.tasks.BuildWrapper.Environment;
 
+/**
+ * Holds the variables generated on a matrix parent build, for its
+ * configuration runs to apply. The {@link EnvironmentSnapshot} is saved with
+ * the parent build and shared by all of its runs.
+ */
 public class PersistedEnvironment implements Action {
-    private Environment environment;
+    private final EnvironmentSnapshot snapshot;
 
-    public PersistedEnvironment(Environment environment) {
-        this.environment = environment;
+    public PersistedEnvironment(EnvironmentSnapshot snapshot) {
+        this.snapshot = snapshot;
     }
 
+    /**
+     * @return The generated variables, or an empty snapshot for records written
+     *         by older versions, which could not be persisted.
+     */
+    public EnvironmentSnapshot getSnapshot() {
+        return snapshot == null ? EnvironmentSnapshot.EMPTY : snapshot;
+    }
+
+    /**
+     * @return An environment that applies {@link #getSnapshot()}. The
+     *         environment itself is no longer persisted, so this is a new one
+     *         on every call.
+     * @deprecated Use {@link #getSnapshot()}.
+     */
+    @Deprecated
     public Environment getEnvironment() {
-        return environment;
+        // An Environment belongs to a wrapper, though it does not use it.
+        return new EnvironmentScript(null, null, false, false).createEnvironment(getSnapshot());
     }
 
     public String getDisplayName() {
@@ -26,4 +47,4 @@ public class PersistedEnvironment implements Action {
     public String getUrlName() {
         return null;
     }
-}
\ No newline at end of file
+}
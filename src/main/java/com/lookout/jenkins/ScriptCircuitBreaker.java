@@ -0,0 +1,95 @@
+package com.lookout.jenkins;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Controller-wide circuit breaker for environment scripts, so that while a
+ * service the scripts depend on is down, builds stop piling up behind scripts
+ * that are bound to fail.
+ *
+ * Scripts are told apart by a digest of their content, so every job running
+ * the same script shares its circuit. The circuit opens once the script failed
+ * in a number of builds in a row, counting a build that exhausted its retries
+ * once. While it is open, builds do not run the script at all. Once it has been
+ * open for the cooldown, one build is let through to try again: if the script
+ * succeeds the circuit closes, if it fails the circuit stays open for another
+ * cooldown. Only scripts that are failing are tracked.
+ */
+public final class ScriptCircuitBreaker {
+    private static final ScriptCircuitBreaker INSTANCE = new ScriptCircuitBreaker();
+
+    private final Map<String, State> states = new HashMap<String, State>();
+
+    public static ScriptCircuitBreaker get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return Whether the script may run: its circuit is closed, or has been
+     *         open for cooldownMillis and this build gets to try it. Other
+     *         builds have to wait for another cooldown.
+     */
+    public synchronized boolean allow(String key, int threshold, long cooldownMillis) {
+        State state = states.get(key);
+        if (state == null || state.failures < threshold) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - state.opened < cooldownMillis) {
+            return false;
+        }
+        // A trial build that never reports back is covered by the next cooldown.
+        state.opened = now;
+        return true;
+    }
+
+    public synchronized void recordSuccess(String key) {
+        states.remove(key);
+    }
+
+    /**
+     * @return Whether this failure opened the circuit.
+     */
+    public synchronized boolean recordFailure(String key, int threshold) {
+        State state = states.get(key);
+        if (state == null) {
+            state = new State();
+            states.put(key, state);
+        }
+        state.failures++;
+        if (state.failures == threshold) {
+            state.opened = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isOpen(String key, int threshold) {
+        State state = states.get(key);
+        return state != null && state.failures >= threshold;
+    }
+
+    public synchronized void clear() {
+        states.clear();
+    }
+
+    /**
+     * Computes the key of the circuit for a set of scripts, which only depends on
+     * their content.
+     */
+    public static String computeKey(List<ScriptFragment> scripts) {
+        ScriptDigest digest = new ScriptDigest();
+        for (ScriptFragment script : scripts) {
+            digest.update(script.getScript()).update(script.getScriptType());
+        }
+        return digest.toHex();
+    }
+
+    private static final class State {
+        int failures;
+        long opened;
+    }
+}
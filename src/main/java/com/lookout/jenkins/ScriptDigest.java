@@ -0,0 +1,79 @@
+package com.lookout.jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digests used to content-address scripts and their results.
+ */
+public final class ScriptDigest {
+    private final MessageDigest digest;
+
+    public ScriptDigest() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Adds a component to the digest. Every component is length-prefixed, so
+     * that ("ab", "c") and ("a", "bc") produce different digests, and null is
+     * distinct from the empty string.
+     */
+    public ScriptDigest update(String value) {
+        if (value == null) {
+            digest.update((byte) 0);
+            return this;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) 1);
+        digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) ':');
+        digest.update(bytes);
+        return this;
+    }
+
+    /**
+     * Adds the contents of a file to the digest, length-prefixed like
+     * {@link #update(String)}, without reading it into memory.
+     */
+    public ScriptDigest update(File file) throws IOException {
+        digest.update((byte) 2);
+        digest.update(Long.toString(file.length()).getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) ':');
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return The digest as a lowercase hex string.
+     */
+    public String toHex() {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    public static String of(String... values) {
+        ScriptDigest digest = new ScriptDigest();
+        for (String value : values) {
+            digest.update(value);
+        }
+        return digest.toHex();
+    }
+}
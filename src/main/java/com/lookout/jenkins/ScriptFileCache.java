@@ -0,0 +1,194 @@
+package com.lookout.jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+
+import com.lookout.jenkins.commands.Commands;
+
+/**
+ * Keeps environment scripts in a directory under each node's root, named by
+ * the digest of their content, so that a script only has to be written to a
+ * node once instead of for every build.
+ *
+ * Files that no job refers to anymore and that no build has used for
+ * {@link #MAX_UNUSED_DAYS} days are removed whenever a node comes online. The
+ * age matters for Pipeline steps, whose scripts are only known while they run.
+ */
+public final class ScriptFileCache {
+    private static final Logger LOGGER = Logger.getLogger(ScriptFileCache.class.getName());
+
+    public static final String DIRECTORY = "environment-script-cache";
+
+    static final int MAX_UNUSED_DAYS = 30;
+
+    private ScriptFileCache() {
+    }
+
+    public static String getFileName(String script, String scriptType) {
+        return "env-" + ScriptDigest.of(script, scriptType) + Commands.getExtension(scriptType);
+    }
+
+    /**
+     * @return The cache directory on this node, or null if the node is offline.
+     */
+    public static FilePath getDirectory(Node node) {
+        FilePath root = node.getRootPath();
+        return root == null ? null : root.child(DIRECTORY);
+    }
+
+    /**
+     * Makes sure the script is present in the node's cache, in a single round
+     * trip.
+     *
+     * @return The cached script, or null if the node is offline.
+     */
+    public static FilePath write(Node node, String script, String scriptType)
+            throws IOException, InterruptedException {
+        FilePath directory = getDirectory(node);
+        if (directory == null) {
+            return null;
+        }
+
+        String name = getFileName(script, scriptType);
+        directory.act(new WriteScript(name, script));
+        return directory.child(name);
+    }
+
+    private static final class WriteScript extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final String script;
+
+        WriteScript(String name, String script) {
+            this.name = name;
+            this.script = script;
+        }
+
+        public Void invoke(File directory, VirtualChannel channel) throws IOException {
+            File file = new File(directory, name);
+            if (file.isFile()) {
+                // Mark it as in use; the content can't differ since it's in the name.
+                file.setLastModified(System.currentTimeMillis());
+                return null;
+            }
+
+            Files.createDirectories(directory.toPath());
+            // Write to a temporary file first so a concurrent build never sees a
+            // partially written script.
+            Path temp = Files.createTempFile(directory.toPath(), name, ".tmp");
+            try {
+                try (Writer writer = Files.newBufferedWriter(temp, Charset.defaultCharset())) {
+                    writer.write(script);
+                }
+                try {
+                    Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (FileAlreadyExistsException e) {
+                    // Another build wrote the same script in the meantime.
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            return null;
+        }
+    }
+
+    private static final class DeleteStaleScripts extends MasterToSlaveFileCallable<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final HashSet<String> inUse;
+        private final long maxUnusedMillis;
+
+        DeleteStaleScripts(HashSet<String> inUse, long maxUnusedMillis) {
+            this.inUse = inUse;
+            this.maxUnusedMillis = maxUnusedMillis;
+        }
+
+        public Integer invoke(File directory, VirtualChannel channel) throws IOException {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return 0;
+            }
+
+            int deleted = 0;
+            long now = System.currentTimeMillis();
+            for (File file : files) {
+                // Every build that uses a script touches it, see WriteScript.
+                boolean recent = now - file.lastModified() < maxUnusedMillis;
+                if (!inUse.contains(file.getName()) && !recent && file.delete()) {
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
+    }
+
+    /**
+     * @return The names of the cached scripts that currently configured
+     *         freestyle and matrix jobs would use. Pipeline steps are not
+     *         included, since their scripts are part of the Pipeline.
+     */
+    static Set<String> getFileNamesInUse() {
+        Set<String> names = new HashSet<String>();
+        for (AbstractProject<?, ?> project : Jenkins.get().allItems(AbstractProject.class)) {
+            EnvironmentScript wrapper = project.getBuildWrappersList().get(EnvironmentScript.class);
+            if (wrapper != null && !Commands.DELIVERY_TEMP_FILE.equals(wrapper.getScriptDelivery())) {
+                for (ScriptFragment script : wrapper.getScripts()) {
+                    names.add(getFileName(script.getScript(), script.getScriptType()));
+                }
+            }
+        }
+        return names;
+    }
+
+    @Extension
+    public static final class CleanupListener extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
+            Node node = c.getNode();
+            FilePath directory = node == null ? null : getDirectory(node);
+            if (directory == null) {
+                return;
+            }
+
+            try {
+                if (!directory.isDirectory()) {
+                    return;
+                }
+                int deleted = directory.act(new DeleteStaleScripts(new HashSet<String>(getFileNamesInUse()),
+                        TimeUnit.DAYS.toMillis(MAX_UNUSED_DAYS)));
+                if (deleted > 0) {
+                    LOGGER.log(Level.FINE, "Deleted {0} stale environment scripts from {1}",
+                            new Object[] { deleted, c.getName() });
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to clean up environment script cache on " + c.getName(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.lookout.jenkins;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * One of several scripts an {@link EnvironmentScript} runs concurrently, each
+ * with its own type.
+ */
+public class ScriptFragment extends AbstractDescribableImpl<ScriptFragment> {
+    private final String script;
+    private final String scriptType;
+
+    @DataBoundConstructor
+    public ScriptFragment(String script, String scriptType) {
+        this.script = script;
+        this.scriptType = scriptType;
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    public String getScriptType() {
+        return scriptType;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<ScriptFragment> {
+        @Override
+        public String getDisplayName() {
+            return "Script fragment";
+        }
+
+        public ListBoxModel doFillScriptTypeItems() {
+            return Jenkins.get().getDescriptorByType(EnvironmentScript.EnvironmentScriptDescriptor.class)
+                    .doFillScriptTypeItems();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.lookout.jenkins;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.lookout.jenkins.output.OutputParser;
+
+/**
+ * The outcome of running an environment script: its return code and the
+ * variables parsed from its output. This is all that crosses the remoting
+ * channel when the script is run by {@link AgentScriptRunner}.
+ */
+public class ScriptResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int returnCode;
+    private final LinkedHashMap<String, String> variables;
+    private final IOException failure;
+    private final long outputSize;
+    private final long launchNanos;
+    private final long executionNanos;
+    private final long parseNanos;
+    private final boolean timedOut;
+    private final boolean cancelled;
+
+    /**
+     * @param output A parser that has already been closed.
+     */
+    public ScriptResult(int returnCode, OutputParser output) {
+        this(returnCode, output, 0, 0, false);
+    }
+
+    /**
+     * @param output         A parser that has already been closed.
+     * @param launchNanos    How long it took to start the script.
+     * @param executionNanos How long the script ran once started, including
+     *                       the time to transfer its output.
+     * @param timedOut       Whether the script was killed because it ran for
+     *                       too long.
+     */
+    public ScriptResult(int returnCode, OutputParser output, long launchNanos, long executionNanos,
+            boolean timedOut) {
+        this.returnCode = returnCode;
+        this.variables = new LinkedHashMap<String, String>(output.getVariables());
+        this.failure = output.getFailure();
+        this.outputSize = output.getOutputSize();
+        this.launchNanos = launchNanos;
+        this.executionNanos = executionNanos;
+        this.parseNanos = output.getParseNanos();
+        this.timedOut = timedOut;
+        this.cancelled = false;
+    }
+
+    private ScriptResult() {
+        this.returnCode = 0;
+        this.variables = new LinkedHashMap<String, String>();
+        this.failure = null;
+        this.outputSize = 0;
+        this.launchNanos = 0;
+        this.executionNanos = 0;
+        this.parseNanos = 0;
+        this.timedOut = false;
+        this.cancelled = true;
+    }
+
+    /**
+     * @return The result of a script that was stopped because another script of
+     *         the same build failed. It only ever comes with the failed one, and
+     *         has no variables.
+     */
+    public static ScriptResult cancelled() {
+        return new ScriptResult();
+    }
+
+    public int getReturnCode() {
+        return returnCode;
+    }
+
+    public Map<String, String> getVariables() {
+        return Collections.unmodifiableMap(variables);
+    }
+
+    /**
+     * @return Why the output could not be parsed, or null if it was parsed
+     *         successfully.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return How many bytes the script wrote to its standard output.
+     */
+    public long getOutputSize() {
+        return outputSize;
+    }
+
+    public long getLaunchNanos() {
+        return launchNanos;
+    }
+
+    public long getExecutionNanos() {
+        return executionNanos;
+    }
+
+    /**
+     * @return How long parsing the output took. Parsing happens while the
+     *         script runs, so this overlaps {@link #getExecutionNanos()}.
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,99 @@
+package com.lookout.jenkins;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller-wide limit on how many environment scripts run at the same
+ * time, so a trigger that starts hundreds of builds at once does not start
+ * hundreds of scripts at once.
+ *
+ * Scripts are limited per key, which stands for the whole controller, a label
+ * or a group named by the jobs, depending on the configured scope. Builds
+ * waiting for the same key get their turn in the order they started waiting.
+ */
+public final class ScriptThrottle {
+    public static final String SCOPE_CONTROLLER = "controller";
+    public static final String SCOPE_CONTROLLER_DISPLAY_NAME = "Across the controller";
+    public static final String SCOPE_LABEL = "label";
+    public static final String SCOPE_LABEL_DISPLAY_NAME = "Per label the build is restricted to";
+    public static final String SCOPE_GROUP = "group";
+    public static final String SCOPE_GROUP_DISPLAY_NAME = "Per group named in the job";
+
+    private static final ScriptThrottle INSTANCE = new ScriptThrottle();
+
+    private final ConcurrentHashMap<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+
+    public static ScriptThrottle get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Takes a slot for key if one is free.
+     *
+     * @param permits How many scripts may run at the same time for key.
+     * @return The slot, or null if they are all taken.
+     */
+    public Slot tryAcquire(String key, int permits) throws InterruptedException {
+        Semaphore semaphore = semaphore(key, permits);
+        // Unlike tryAcquire(), this does not jump the queue of waiting builds.
+        return semaphore.tryAcquire(0, TimeUnit.SECONDS) ? new Slot(semaphore) : null;
+    }
+
+    /**
+     * Waits for a slot for key.
+     *
+     * @param permits How many scripts may run at the same time for key.
+     */
+    public Slot acquire(String key, int permits) throws InterruptedException {
+        Semaphore semaphore = semaphore(key, permits);
+        semaphore.acquire();
+        return new Slot(semaphore);
+    }
+
+    /**
+     * @return How many builds are waiting for a slot for key.
+     */
+    public int getQueueLength(String key) {
+        Limit limit = limits.get(key);
+        return limit == null ? 0 : limit.semaphore.getQueueLength();
+    }
+
+    private Semaphore semaphore(String key, int permits) {
+        // When the setting changes, builds already holding a slot release it to
+        // the old semaphore, which is then forgotten.
+        return limits.compute(key, (k, limit) -> limit != null && limit.permits == permits ? limit
+                : new Limit(permits)).semaphore;
+    }
+
+    private static final class Limit {
+        final int permits;
+        final Semaphore semaphore;
+
+        Limit(int permits) {
+            this.permits = permits;
+            this.semaphore = new Semaphore(permits, true);
+        }
+    }
+
+    /**
+     * A slot held by a running script, released by {@link #close()}.
+     */
+    public static final class Slot implements AutoCloseable {
+        private final Semaphore semaphore;
+        private boolean released;
+
+        Slot(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                semaphore.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.lookout.jenkins;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long each phase of generating a build's environment took, along with
+ * how much output the script produced and, if it failed, how.
+ */
+public class ScriptTimings implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String SCRIPT_FILE = "Script file";
+    public static final String LAUNCH = "Launch";
+    public static final String EXECUTION = "Execution";
+    public static final String PARSING = "Parsing";
+    public static final String PUBLISHING = "Publishing";
+    public static final String WAITING = "Waiting for another run";
+    public static final String QUEUED = "Waiting for a script slot";
+    public static final String WATCHED_FILES = "Hashing watched files";
+    public static final String RETRY_BACKOFF = "Waiting to retry";
+
+    public static final String FAILURE_WORKSPACE = "workspace";
+    public static final String FAILURE_SCRIPT_FILE = "script-file";
+    public static final String FAILURE_INTERPRETER = "interpreter";
+    public static final String FAILURE_EXIT_CODE = "exit-code";
+    public static final String FAILURE_PARSE = "parse";
+    public static final String FAILURE_OUTPUT_TOO_LARGE = "output-too-large";
+    public static final String FAILURE_TIMEOUT = "timeout";
+    public static final String FAILURE_CONFLICT = "conflict";
+    public static final String FAILURE_CIRCUIT_OPEN = "circuit-open";
+
+    // Phase name to nanoseconds, in the order the phases happened.
+    private final LinkedHashMap<String, Long> phases = new LinkedHashMap<String, Long>();
+    private final transient long started = System.nanoTime();
+    private long totalNanos;
+    private long outputBytes;
+    private boolean cached;
+    private String failure;
+
+    public synchronized void record(String phase, long nanos) {
+        Long previous = phases.get(phase);
+        phases.put(phase, previous == null ? nanos : previous + nanos);
+    }
+
+    /**
+     * Records the time since startNanos, a value of {@link System#nanoTime()}.
+     */
+    public void recordSince(String phase, long startNanos) {
+        record(phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Stops the clock for the total time.
+     */
+    public void finish() {
+        totalNanos = System.nanoTime() - started;
+    }
+
+    public synchronized Map<String, Long> getPhases() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(phases));
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos);
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    public void setOutputBytes(long outputBytes) {
+        this.outputBytes = outputBytes;
+    }
+
+    /**
+     * @return Whether the result came from {@link EnvironmentCache}, or from an
+     *         earlier build whose watched files were the same, instead of
+     *         running the script.
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    public void setCached(boolean cached) {
+        this.cached = cached;
+    }
+
+    /**
+     * @return One of the FAILURE_ constants, or null if the environment was
+     *         generated successfully.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    public void setFailure(String failure) {
+        this.failure = failure;
+    }
+
+    public static String formatMillis(long nanos) {
+        return String.format("%.1f ms", nanos / 1e6);
+    }
+}
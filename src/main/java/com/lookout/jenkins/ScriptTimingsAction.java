@@ -0,0 +1,32 @@
+package com.lookout.jenkins;
+
+import hudson.model.Action;
+
+/**
+ * Shows on the build page how long generating the environment took, phase by
+ * phase.
+ */
+public class ScriptTimingsAction implements Action {
+    private final ScriptTimings timings;
+
+    public ScriptTimingsAction(ScriptTimings timings) {
+        this.timings = timings;
+    }
+
+    public ScriptTimings getTimings() {
+        return timings;
+    }
+
+    public String getDisplayName() {
+        return "Environment Script Timings";
+    }
+
+    // Only shown as a summary on the build page.
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,123 @@
+package com.lookout.jenkins;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
+import hudson.model.Action;
+
+/**
+ * Environments generated by the configuration runs of a {@link MatrixBuild}
+ * and shared with the other runs on the same node, or with the same values of
+ * some axes.
+ *
+ * The first run that needs the environment for a key generates it; runs with
+ * the same key that start in the meantime wait for it instead of running the
+ * script themselves. If generating it fails, one of the waiting runs tries
+ * again, so a failure never spreads to runs that would have succeeded on
+ * their own.
+ */
+public class SharedEnvironment implements Action {
+    public static final String SHARE_NODE = "node";
+    public static final String SHARE_NODE_DISPLAY_NAME = "Once per node";
+    public static final String SHARE_AXES = "axes";
+    public static final String SHARE_AXES_DISPLAY_NAME = "Once per value of the selected axes";
+    public static final String SHARE_NONE_DISPLAY_NAME = "Once per configuration run";
+
+    // Only the environments that were generated successfully are persisted.
+    private final ConcurrentHashMap<String, EnvironmentSnapshot> snapshots = new ConcurrentHashMap<String, EnvironmentSnapshot>();
+
+    private transient ConcurrentHashMap<String, CompletableFuture<EnvironmentSnapshot>> pending = new ConcurrentHashMap<String, CompletableFuture<EnvironmentSnapshot>>();
+
+    protected Object readResolve() {
+        pending = new ConcurrentHashMap<String, CompletableFuture<EnvironmentSnapshot>>();
+        for (Map.Entry<String, EnvironmentSnapshot> snapshot : snapshots.entrySet()) {
+            pending.put(snapshot.getKey(), CompletableFuture.completedFuture(snapshot.getValue()));
+        }
+        return this;
+    }
+
+    /**
+     * Claims the key for the calling run, unless another run already did.
+     *
+     * @param future Completed through {@link #finish} once the environment is
+     *               generated.
+     * @return The environment being generated by another run, or null if the
+     *         caller now has to generate it.
+     */
+    public CompletableFuture<EnvironmentSnapshot> claim(String key, CompletableFuture<EnvironmentSnapshot> future) {
+        return pending.putIfAbsent(key, future);
+    }
+
+    /**
+     * Publishes the environment generated for a claimed key.
+     *
+     * @param snapshot The environment, or null if it could not be generated, in
+     *                 which case the key can be claimed again.
+     */
+    public void finish(String key, CompletableFuture<EnvironmentSnapshot> future, EnvironmentSnapshot snapshot) {
+        if (snapshot != null) {
+            snapshots.put(key, snapshot);
+        } else {
+            pending.remove(key, future);
+        }
+        future.complete(snapshot);
+    }
+
+    /**
+     * Waits for another run to generate the environment.
+     *
+     * @return The environment, or null if the other run failed to generate it.
+     */
+    public static EnvironmentSnapshot await(CompletableFuture<EnvironmentSnapshot> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The environments generated so far, by key.
+     */
+    public Map<String, EnvironmentSnapshot> getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * @return The key runs share environments by: the name of the node for
+     *         {@link #SHARE_NODE}, or the values of the chosen axes for
+     *         {@link #SHARE_AXES}.
+     */
+    public static String getKey(MatrixRun run, String sharedBy, Iterable<String> axes) {
+        StringBuilder key = new StringBuilder();
+        if (SHARE_AXES.equals(sharedBy)) {
+            Map<String, String> combination = run.getParent().getCombination();
+            for (String axis : axes) {
+                if (combination.containsKey(axis)) {
+                    key.append(key.length() == 0 ? "" : ",").append(axis).append('=').append(combination.get(axis));
+                }
+            }
+        } else {
+            key.append("node=").append(run.getBuiltOnStr());
+        }
+        return key.toString();
+    }
+
+    public String getDisplayName() {
+        return "Shared Variables From Environment Script";
+    }
+
+    // Currently, we don't expose this through the web.
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,432 @@
+package com.lookout.jenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueListener;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+
+/**
+ * Runs the environment scripts of jobs that enable
+ * {@link EnvironmentScript#isSpeculative()} while their builds wait in the
+ * queue, so the build only has to collect the result once it starts.
+ *
+ * The script runs on the node and in the workspace of the last build, where
+ * the queued build most likely ends up, with the environment of the job on
+ * that node, the parameters of the queued build and the build variables it
+ * will most likely get, such as its number. The build uses the result only if
+ * it did get that node and workspace, and every variable the script refers to
+ * or the job names as an input has the same value; otherwise it runs the
+ * script itself. Since the script uses the workspace, any build of the job
+ * that is about to check out the source code there first stops the scripts of
+ * other queued builds and waits for its own, see {@link #beforeCheckout}. The
+ * script runs without an executor, so it is only started if the node has an
+ * idle one. What the script printed to its standard error is copied to the
+ * build's console if the result is used.
+ */
+@Extension
+public class SpeculativeEnvironment extends QueueListener {
+    private static final Logger LOGGER = Logger.getLogger(SpeculativeEnvironment.class.getName());
+
+    // Results of builds that never got to set up their environment, for example
+    // because the checkout failed, are dropped after this long.
+    private static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    // What the script prints to its standard error is held until the build
+    // starts, so it is capped like the output, or at this if that isn't.
+    private static final long MAX_LOG_SIZE = 1024 * 1024;
+
+    private final Map<Long, Speculation> speculations = new ConcurrentHashMap<Long, Speculation>();
+
+    public static SpeculativeEnvironment get() {
+        return ExtensionList.lookupSingleton(SpeculativeEnvironment.class);
+    }
+
+    @Override
+    public void onEnterWaiting(final Queue.WaitingItem item) {
+        purge();
+        if (!(item.task instanceof AbstractProject) || !(item.task instanceof BuildableItemWithBuildWrappers)) {
+            return;
+        }
+        final AbstractProject<?, ?> project = (AbstractProject<?, ?>) item.task;
+        final EnvironmentScript wrapper = ((BuildableItemWithBuildWrappers) project).getBuildWrappersList()
+                .get(EnvironmentScript.class);
+        if (wrapper == null || !wrapper.isSpeculative()) {
+            return;
+        }
+
+        long maxOutputSize = wrapper.getDescriptor().getMaxOutputSize();
+        final Speculation speculation = new Speculation(project.getFullName(),
+                maxOutputSize > 0 ? Math.min(maxOutputSize, MAX_LOG_SIZE) : MAX_LOG_SIZE);
+        // The queue is locked while listeners run, so everything else happens on
+        // another thread.
+        speculation.future = Computer.threadPoolForRemoting.submit(new Callable<List<ScriptResult>>() {
+            public List<ScriptResult> call() throws IOException, InterruptedException {
+                if (!speculation.start()) {
+                    return null;
+                }
+                try {
+                    return speculate(item, project, wrapper, speculation);
+                } finally {
+                    speculation.finish();
+                }
+            }
+        });
+        speculations.put(item.getId(), speculation);
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem item) {
+        if (item.isCancelled()) {
+            Speculation speculation = speculations.remove(item.getId());
+            if (speculation != null) {
+                speculation.cancel();
+            }
+        }
+    }
+
+    private List<ScriptResult> speculate(Queue.WaitingItem item, AbstractProject<?, ?> project,
+            EnvironmentScript wrapper, Speculation speculation) throws IOException, InterruptedException {
+        AbstractBuild<?, ?> last = project.getLastBuild();
+        if (last == null) {
+            speculation.reason = "the job has no earlier build to take the node and workspace of";
+            return null;
+        }
+        Node node = last.getBuiltOn();
+        FilePath ws = last.getWorkspace();
+        Computer computer = node == null ? null : node.toComputer();
+        if (ws == null || computer == null || computer.isOffline()) {
+            speculation.reason = "the node of " + last.getFullDisplayName() + " is gone or offline";
+            return null;
+        }
+        // The script does not take an executor, but should not run where the
+        // builds that do would have to share the node with it.
+        if (computer.countIdle() == 0) {
+            speculation.reason = "the node of " + last.getFullDisplayName() + " had no idle executor";
+            return null;
+        }
+
+        // The workspace is only free if no other build of the job uses it. Builds
+        // that start from now on see the workspace in beforeCheckout and stop the
+        // script, those that already run are seen here.
+        speculation.node = node.getNodeName();
+        speculation.workspace = ws.getRemote();
+        if (project.isBuilding()) {
+            speculation.reason = "another build of the job was using the workspace";
+            return null;
+        }
+
+        TaskListener listener = new StreamTaskListener(speculation.log, StandardCharsets.UTF_8);
+        EnvVars env = project.getEnvironment(node, listener);
+        env.put("WORKSPACE", ws.getRemote());
+        putBuildVariables(project, env);
+        for (ParametersAction parameters : item.getActions(ParametersAction.class)) {
+            for (ParameterValue parameter : parameters.getParameters()) {
+                Object value = parameter.getValue();
+                if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+                    env.put(parameter.getName(), String.valueOf(value));
+                }
+            }
+        }
+
+        List<ScriptFragment> scripts = wrapper.getScripts();
+        speculation.inputs = wrapper.getSpeculationInputs(scripts, env);
+        speculation.key = wrapper.getSpeculationKey(scripts, node, ws, env);
+        List<ScriptResult> results = wrapper.speculate(project, scripts, node, ws, node.createLauncher(listener),
+                env, listener);
+        if (results == null) {
+            speculation.reason = "no script slot was free";
+        }
+        return results;
+    }
+
+    /**
+     * Adds the variables {@link hudson.model.Run#getEnvironment} sets for the
+     * build the job most likely gets next. Should the build get another number,
+     * the values differ and the result is not used if the script refers to
+     * them.
+     */
+    static void putBuildVariables(AbstractProject<?, ?> project, EnvVars env) {
+        String number = String.valueOf(project.getNextBuildNumber());
+        env.put("BUILD_NUMBER", number);
+        env.put("BUILD_ID", number);
+        env.put("BUILD_DISPLAY_NAME", "#" + number);
+        env.put("BUILD_TAG", "jenkins-" + project.getFullName().replace('/', '-') + "-" + number);
+        String rootUrl = Jenkins.get().getRootUrl();
+        if (rootUrl != null) {
+            env.put("BUILD_URL", rootUrl + project.getUrl() + number + "/");
+        }
+    }
+
+    /**
+     * Makes sure no script started while a build of the job was queued runs in
+     * the workspace of the given build while it checks out the source code. The
+     * script of the build itself is waited for, since its result may still be
+     * used, those of other builds are stopped.
+     */
+    void beforeCheckout(AbstractBuild<?, ?> build, TaskListener listener) throws InterruptedException {
+        FilePath ws = build.getWorkspace();
+        if (ws == null || speculations.isEmpty()) {
+            return;
+        }
+        String job = build.getParent().getFullName();
+        String node = build.getBuiltOnStr();
+        for (Map.Entry<Long, Speculation> entry : speculations.entrySet()) {
+            Speculation speculation = entry.getValue();
+            if (!speculation.job.equals(job)) {
+                continue;
+            }
+            // Not known yet means the script may still pick this workspace.
+            boolean here = speculation.workspace == null
+                    || (speculation.workspace.equals(ws.getRemote()) && Objects.equals(speculation.node, node));
+            if (entry.getKey() != build.getQueueId()) {
+                if (here) {
+                    speculation.reason = "another build of the job started in the workspace";
+                    speculation.cancelAndWait();
+                }
+            } else if (!here) {
+                // Its result is of no use, and it has no business on another node.
+                speculations.remove(entry.getKey());
+                speculation.cancel();
+                listener.getLogger().println("[environment-script] The script run while the build was queued used"
+                        + " another node or workspace, running it again");
+            } else if (!speculation.future.isDone()) {
+                listener.getLogger().println("[environment-script] Waiting for the script run while the build was"
+                        + " queued to stop before the checkout");
+                speculation.await();
+            }
+        }
+    }
+
+    /**
+     * Hands over the result of the script started while the build was queued,
+     * waiting for it if it still runs. If the result can't be used, the script
+     * is stopped before this returns, so it no longer uses the workspace.
+     *
+     * @param key    What the result has to have been computed for, see
+     *               {@link EnvironmentScript#getSpeculationKey}.
+     * @param inputs The values that went into the key, to tell which differ.
+     * @return The results, or null if there are none the build can use.
+     */
+    List<ScriptResult> collect(long queueId, String key, Map<String, String> inputs, TaskListener listener)
+            throws InterruptedException {
+        Speculation speculation = speculations.remove(queueId);
+        if (speculation == null) {
+            return null;
+        }
+        if (speculation.key != null && !key.equals(speculation.key)) {
+            speculation.cancelAndWait();
+            logMismatch(speculation, inputs, listener);
+            return null;
+        }
+
+        long start = System.nanoTime();
+        List<ScriptResult> results;
+        try {
+            results = speculation.future.get();
+        } catch (CancellationException e) {
+            // Cancelled before it finished, which does not mean it stopped.
+            speculation.cancelAndWait();
+            if (speculation.reason != null) {
+                listener.getLogger().println("[environment-script] The script run while the build was queued was"
+                        + " stopped: " + speculation.reason);
+            }
+            return null;
+        } catch (ExecutionException e) {
+            listener.getLogger().println("[environment-script] The script run while the build was queued failed ("
+                    + e.getCause() + "), running it again");
+            return null;
+        } catch (InterruptedException e) {
+            speculation.cancelAndWait();
+            throw e;
+        }
+
+        if (results == null) {
+            listener.getLogger().println("[environment-script] The script was not run while the build was queued: "
+                    + (speculation.reason == null ? "it was given up on" : speculation.reason));
+            return null;
+        }
+        // The key was not known yet when we first looked.
+        if (!key.equals(speculation.key)) {
+            logMismatch(speculation, inputs, listener);
+            return null;
+        }
+
+        // Same order as if the build had run the script itself.
+        listener.getLogger().write(speculation.log.toByteArray(), 0, speculation.log.size());
+        if (speculation.log.getDropped() > 0) {
+            listener.getLogger().println("[environment-script] Dropped the last " + speculation.log.getDropped()
+                    + " bytes the script printed while the build was queued");
+        }
+        listener.getLogger().println(String.format("[environment-script] Using the result of the script run"
+                + " while the build was queued, waited %.1f s for it", (System.nanoTime() - start) / 1e9));
+        return results;
+    }
+
+    private static void logMismatch(Speculation speculation, Map<String, String> inputs, TaskListener listener) {
+        List<String> changed = new ArrayList<String>();
+        for (Map.Entry<String, String> input : inputs.entrySet()) {
+            Map<String, String> speculated = speculation.inputs;
+            if (speculated == null || !Objects.equals(input.getValue(), speculated.get(input.getKey()))) {
+                changed.add(input.getKey());
+            }
+        }
+        listener.getLogger().println("[environment-script] The script run while the build was queued used "
+                + (changed.isEmpty() ? "another node or workspace"
+                        : "other values of " + String.join(", ", changed))
+                + ", running it again");
+    }
+
+    private void purge() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Speculation> i = speculations.values().iterator(); i.hasNext();) {
+            Speculation speculation = i.next();
+            if (now - speculation.created > MAX_AGE_MILLIS) {
+                i.remove();
+                speculation.cancel();
+            }
+        }
+    }
+
+    private static final class Speculation {
+        final long created = System.currentTimeMillis();
+        final String job;
+        final CappedLog log;
+        // Set before the script starts.
+        volatile String node;
+        volatile String workspace;
+        volatile String key;
+        volatile Map<String, String> inputs;
+        // Why there is no result, if there is none.
+        volatile String reason;
+        volatile Future<List<ScriptResult>> future;
+        // Guarded by this.
+        private boolean running;
+        private boolean abandoned;
+
+        Speculation(String job, long maxLogSize) {
+            this.job = job;
+            this.log = new CappedLog(maxLogSize);
+        }
+
+        /**
+         * @return Whether the speculation may go ahead, which it may not once it
+         *         has been cancelled.
+         */
+        synchronized boolean start() {
+            if (abandoned) {
+                return false;
+            }
+            running = true;
+            return true;
+        }
+
+        synchronized void finish() {
+            running = false;
+            notifyAll();
+        }
+
+        void cancel() {
+            synchronized (this) {
+                abandoned = true;
+            }
+            Future<List<ScriptResult>> future = this.future;
+            if (future != null) {
+                // Interrupting the script kills its processes.
+                if (future.cancel(true)) {
+                    LOGGER.log(Level.FINE, "Cancelled speculative environment script with key {0}", key);
+                }
+            }
+        }
+
+        /**
+         * Cancels the speculation and waits until it no longer runs.
+         */
+        void cancelAndWait() throws InterruptedException {
+            cancel();
+            awaitStopped();
+        }
+
+        /**
+         * Waits until the speculation has finished or was given up on, keeping
+         * its result. It is cancelled if the wait is interrupted.
+         */
+        void await() throws InterruptedException {
+            try {
+                future.get();
+            } catch (ExecutionException | CancellationException e) {
+                // Reported when the result is collected.
+            } catch (InterruptedException e) {
+                cancelAndWait();
+                throw e;
+            }
+            awaitStopped();
+        }
+
+        private synchronized void awaitStopped() throws InterruptedException {
+            while (running) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Keeps what a script prints up to a limit and counts the rest.
+     */
+    private static final class CappedLog extends ByteArrayOutputStream {
+        private final long limit;
+        private long dropped;
+
+        CappedLog(long limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (count < limit) {
+                super.write(b);
+            } else {
+                dropped++;
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            int kept = (int) Math.max(0, Math.min(len, limit - count));
+            super.write(b, off, kept);
+            dropped += len - kept;
+        }
+
+        synchronized long getDropped() {
+            return dropped;
+        }
+    }
+}
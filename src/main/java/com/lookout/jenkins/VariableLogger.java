@@ -0,0 +1,162 @@
+package com.lookout.jenkins;
+
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * Writes the variables injected into a build to its console, in one of three
+ * modes, without writing more than a fixed number of bytes.
+ */
+public final class VariableLogger {
+    public static final String MODE_FULL = "full";
+    public static final String MODE_FULL_DISPLAY_NAME = "Every variable, one write per line";
+    public static final String MODE_BATCHED = "batched";
+    public static final String MODE_BATCHED_DISPLAY_NAME = "Every variable, in a single write";
+    public static final String MODE_SUMMARY = "summary";
+    public static final String MODE_SUMMARY_DISPLAY_NAME = "Summary only";
+
+    private static final String PREFIX = "[environment-script] ";
+
+    private final PrintStream logger;
+    private final long maxBytes;
+    private final boolean hideValues;
+    private long written;
+
+    /**
+     * @param maxBytes   The most this logger writes, or zero for no limit.
+     * @param hideValues Whether to log only the names of the variables.
+     */
+    public VariableLogger(PrintStream logger, long maxBytes, boolean hideValues) {
+        this.logger = logger;
+        this.maxBytes = maxBytes;
+        this.hideValues = hideValues;
+    }
+
+    /**
+     * Logs every variable, each with its own write, so they show up as soon as
+     * possible.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void logFull(Map<String, String> envAdditions, Map<String, String> envOverrides) {
+        int total = envAdditions.size() + envOverrides.size(), logged = 0;
+        for (Map<String, String> variables : new Map[] { envAdditions, envOverrides }) {
+            for (Map.Entry<String, String> variable : variables.entrySet()) {
+                String line = line(variable);
+                if (!fits(line)) {
+                    logTruncated(total - logged);
+                    return;
+                }
+                logger.println(line);
+                logged++;
+            }
+        }
+    }
+
+    /**
+     * Logs every variable with a single write to the console.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void logBatched(Map<String, String> envAdditions, Map<String, String> envOverrides) {
+        int total = envAdditions.size() + envOverrides.size(), logged = 0;
+        StringBuilder output = new StringBuilder();
+        String separator = System.lineSeparator();
+        outer: for (Map<String, String> variables : new Map[] { envAdditions, envOverrides }) {
+            for (Map.Entry<String, String> variable : variables.entrySet()) {
+                String line = line(variable);
+                if (!fits(line)) {
+                    break outer;
+                }
+                output.append(line).append(separator);
+                logged++;
+            }
+        }
+        logger.print(output);
+        if (logged < total) {
+            logTruncated(total - logged);
+        }
+    }
+
+    /**
+     * Logs how many variables there are and the names of the first few.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void logSummary(Map<String, String> envAdditions, Map<String, String> envOverrides, int maxNames) {
+        StringBuilder output = new StringBuilder(PREFIX).append("Adding ").append(envAdditions.size())
+                .append(" variables and ").append(envOverrides.size()).append(" overrides");
+
+        int named = 0;
+        for (Map<String, String> variables : new Map[] { envAdditions, envOverrides }) {
+            for (String key : variables.keySet()) {
+                if (named == maxNames) {
+                    break;
+                }
+                output.append(named == 0 ? ": " : ", ").append(key);
+                named++;
+            }
+        }
+        if (named > 0 && named < envAdditions.size() + envOverrides.size()) {
+            output.append(", ...");
+        }
+
+        String line = output.toString();
+        if (fits(line)) {
+            logger.println(line);
+        }
+    }
+
+    /**
+     * @return How many bytes this logger has written, not counting the notice
+     *         that the limit was reached.
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    private String line(Map.Entry<String, String> variable) {
+        StringBuilder output = new StringBuilder(PREFIX).append("Adding variable '").append(variable.getKey())
+                .append("'");
+
+        // If hideGeneratedValue is set to true we will hide generated value from log
+        // message
+        if (!hideValues) {
+            output.append(" with value '").append(variable.getValue()).append("'");
+        }
+        return output.toString();
+    }
+
+    /**
+     * Counts the line against the limit if it fits.
+     */
+    private boolean fits(String line) {
+        long size = utf8Length(line) + 1;
+        if (maxBytes > 0 && written + size > maxBytes) {
+            return false;
+        }
+        written += size;
+        return true;
+    }
+
+    private void logTruncated(int remaining) {
+        logger.println(PREFIX + "Not logging " + remaining + " more variables, the console limit of " + maxBytes
+                + " bytes was reached");
+    }
+
+    static long utf8Length(CharSequence s) {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
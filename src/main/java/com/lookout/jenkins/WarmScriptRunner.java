@@ -0,0 +1,342 @@
+package com.lookout.jenkins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import com.lookout.jenkins.output.OutputParser;
+import com.lookout.jenkins.output.OutputTooLargeException;
+
+/**
+ * Runs an environment script in an interpreter that is already running on
+ * the node that holds the workspace, instead of starting a new one for every
+ * build, and parses its output there like {@link AgentScriptRunner}, as the
+ * script writes it to its output file.
+ *
+ * Interpreters are started on demand and kept for as long as the agent stays
+ * connected, at most {@link #MAX_IDLE} of each kind while no build needs
+ * them, each for at most {@link #IDLE_TIMEOUT_MILLIS}. Each serves one script
+ * at a time; a build that finds them all busy starts another. The request/response protocol is that of the daemon
+ * command lines in the commands package: one line per script naming the files
+ * that hold its environment, code and output, answered by one line with the
+ * exit code. An interpreter that misbehaves, or runs a script that times out
+ * or is aborted, is killed rather than reused. Only the agent's user may read
+ * the request files, since the environment may hold secrets, and the one with
+ * the environment is deleted as soon as the script is done.
+ */
+public class WarmScriptRunner extends MasterToSlaveFileCallable<ScriptResult> {
+    private static final long serialVersionUID = 1L;
+
+    static final int MAX_IDLE = 2;
+
+    static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    // How often the output of a running script is checked for more.
+    private static final long TAIL_INTERVAL_MILLIS = 20;
+
+    // Static state lives as long as the agent's connection, since that is how
+    // long the classes loaded through it are kept.
+    private static final Map<String, Deque<Daemon>> IDLE = new ConcurrentHashMap<String, Deque<Daemon>>();
+    private static final AtomicLong REQUESTS = new AtomicLong();
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Environment script daemon reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Environment script daemon reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicBoolean REAPING = new AtomicBoolean();
+
+    private final String[] daemon;
+    private final String scriptFile;
+    private final EnvVars envs;
+    private final String outputFormat;
+    private final long maxOutputSize;
+    private final int maxVariableSize;
+    private final int timeout;
+    private final TaskListener listener;
+
+    /**
+     * @param daemon       Command line that starts the interpreter.
+     * @param scriptFile   The script, already written to the node.
+     * @param outputFormat One of the FORMAT_ constants in {@link OutputParser}.
+     * @param timeout      How many seconds the script may run, or zero for no
+     *                     limit.
+     */
+    public WarmScriptRunner(String[] daemon, String scriptFile, EnvVars envs, String outputFormat,
+            long maxOutputSize, int maxVariableSize, int timeout, TaskListener listener) {
+        this.daemon = daemon;
+        this.scriptFile = scriptFile;
+        this.envs = envs;
+        this.outputFormat = outputFormat;
+        this.maxOutputSize = maxOutputSize;
+        this.maxVariableSize = maxVariableSize;
+        this.timeout = timeout;
+        this.listener = listener;
+    }
+
+    public ScriptResult invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("env-warm");
+        try {
+            Path env = dir.resolve("env"), out = dir.resolve("out"), err = dir.resolve("err");
+            StringBuilder variables = new StringBuilder();
+            for (Map.Entry<String, String> variable : envs.entrySet()) {
+                variables.append(variable.getKey()).append('=').append(variable.getValue()).append('\0');
+            }
+            createPrivateFile(env);
+            Files.write(env, variables.toString().getBytes(StandardCharsets.UTF_8));
+
+            long id = REQUESTS.incrementAndGet();
+            String request = id + "\t" + workspace.getAbsolutePath() + "\t" + env + "\t" + scriptFile + "\t" + out
+                    + "\t" + err;
+            if (request.indexOf('\n') >= 0 || request.split("\t", -1).length != 6) {
+                throw new IOException("Paths with tabs or line breaks can't be sent to a warm interpreter: " + request);
+            }
+
+            long start = System.nanoTime();
+            String key = String.join("\0", daemon);
+            final Daemon interpreter = take(key);
+            long launchNanos = System.nanoTime() - start;
+
+            // The output is parsed as the script writes it, so a script that
+            // prints too much is stopped like in AgentScriptRunner.run.
+            final OutputParser output = OutputParser.create(outputFormat, maxOutputSize, maxVariableSize);
+            final AtomicBoolean tooLarge = new AtomicBoolean();
+            output.setOnFailure(new Runnable() {
+                public void run() {
+                    if (output.getFailure() instanceof OutputTooLargeException) {
+                        tooLarge.set(true);
+                        interpreter.kill();
+                    }
+                }
+            });
+            createPrivateFile(out);
+            createPrivateFile(err);
+            Tail tail = new Tail(out.toFile(), output);
+            Future<Void> tailing = READERS.submit(tail);
+
+            start = System.nanoTime();
+            Integer returnCode = null;
+            boolean timedOut = false;
+            boolean answered = false;
+            try {
+                returnCode = interpreter.run(id, request, timeout);
+                timedOut = returnCode == null;
+                answered = true;
+            } catch (IOException e) {
+                if (!tooLarge.get()) {
+                    throw e;
+                }
+                // Killed for printing too much, which is what its exit code says.
+                returnCode = -1;
+                answered = true;
+            } finally {
+                Files.deleteIfExists(env);
+                if (returnCode != null && !tooLarge.get()) {
+                    release(key, interpreter);
+                } else {
+                    // Timed out, aborted, printed too much or out of step with us.
+                    interpreter.kill();
+                }
+                if (!answered) {
+                    tailing.cancel(true);
+                }
+            }
+            // Read what the script wrote after the tail last looked.
+            tail.stop();
+            try {
+                tailing.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Unable to read the output of the warm interpreter", e.getCause());
+            }
+            long executionNanos = System.nanoTime() - start;
+
+            Files.copy(err, listener.getLogger());
+            output.close();
+            return new ScriptResult(timedOut ? -1 : returnCode, output, launchNanos, executionNanos, timedOut);
+        } finally {
+            Util.deleteRecursive(dir.toFile());
+        }
+    }
+
+    private static void createPrivateFile(Path file) throws IOException {
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            // The temporary directory of the user is not shared on Windows.
+            Files.createFile(file);
+        }
+    }
+
+    private static Daemon take(String key) throws IOException {
+        Deque<Daemon> idle = IDLE.computeIfAbsent(key, k -> new ArrayDeque<Daemon>());
+        synchronized (idle) {
+            while (!idle.isEmpty()) {
+                Daemon daemon = idle.pop();
+                if (daemon.process.isAlive()) {
+                    return daemon;
+                }
+            }
+        }
+        return new Daemon(key.split("\0"));
+    }
+
+    private static void release(String key, Daemon daemon) {
+        Deque<Daemon> idle = IDLE.get(key);
+        synchronized (idle) {
+            if (idle.size() < MAX_IDLE && daemon.process.isAlive()) {
+                daemon.idleSince = System.currentTimeMillis();
+                idle.push(daemon);
+                if (REAPING.compareAndSet(false, true)) {
+                    REAPER.scheduleWithFixedDelay(WarmScriptRunner::reap, 1, 1, TimeUnit.MINUTES);
+                }
+                return;
+            }
+        }
+        daemon.kill();
+    }
+
+    /**
+     * Kills the interpreters that no build needed for
+     * {@link #IDLE_TIMEOUT_MILLIS}.
+     */
+    static void reap() {
+        long now = System.currentTimeMillis();
+        for (Deque<Daemon> idle : IDLE.values()) {
+            synchronized (idle) {
+                for (Iterator<Daemon> i = idle.iterator(); i.hasNext();) {
+                    Daemon daemon = i.next();
+                    if (now - daemon.idleSince > IDLE_TIMEOUT_MILLIS || !daemon.process.isAlive()) {
+                        i.remove();
+                        daemon.kill();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Feeds what is written to a file to output while it grows, until it is
+     * stopped and has read everything written before that.
+     */
+    private static final class Tail implements Callable<Void> {
+        private final File file;
+        private final OutputParser output;
+        private volatile boolean stopped;
+
+        Tail(File file, OutputParser output) {
+            this.file = file;
+            this.output = output;
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        public Void call() throws IOException, InterruptedException {
+            byte[] buffer = new byte[8192];
+            try (InputStream in = new FileInputStream(file)) {
+                while (!(output.getFailure() instanceof OutputTooLargeException)) {
+                    // Checked before reading, so nothing written before the stop is missed.
+                    boolean last = stopped;
+                    int n = in.read(buffer);
+                    if (n > 0) {
+                        output.write(buffer, 0, n);
+                    } else if (last) {
+                        break;
+                    } else {
+                        Thread.sleep(TAIL_INTERVAL_MILLIS);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Daemon {
+        final Process process;
+        final Writer requests;
+        final BufferedReader responses;
+        // Guarded by the deque the daemon is idle in.
+        long idleSince;
+
+        Daemon(String[] cmds) throws IOException {
+            process = new ProcessBuilder(cmds).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            requests = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            InputStream in = process.getInputStream();
+            responses = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @return The exit code of the script, or null if it timed out.
+         * @throws IOException If the interpreter died or answered out of turn.
+         */
+        Integer run(long id, String request, int timeout) throws IOException, InterruptedException {
+            requests.write(request);
+            requests.write('\n');
+            requests.flush();
+
+            // Read on another thread, since reading can't be interrupted.
+            Future<String> response = READERS.submit(responses::readLine);
+            String line;
+            try {
+                line = timeout > 0 ? response.get(timeout, TimeUnit.SECONDS) : response.get();
+            } catch (TimeoutException e) {
+                return null;
+            } catch (ExecutionException e) {
+                throw new IOException("Unable to read from the warm interpreter", e.getCause());
+            } finally {
+                response.cancel(true);
+            }
+
+            String prefix = id + " ";
+            if (line == null || !line.startsWith(prefix)) {
+                throw new IOException("Unexpected answer from the warm interpreter: " + line);
+            }
+            try {
+                return Integer.valueOf(line.substring(prefix.length()).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected answer from the warm interpreter: " + line, e);
+            }
+        }
+
+        void kill() {
+            // Kill whatever the script started before the interpreter itself.
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.lookout.jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Hashes the workspace files matched by {@link EnvironmentScript#getWatchedFiles()}
+ * on the node that holds them, so only the digest is sent back to the
+ * controller.
+ *
+ * The digest covers the path and contents of every matched file, in path
+ * order, so adding, removing, renaming or editing one of them changes it.
+ */
+public class WatchedFiles extends MasterToSlaveFileCallable<WatchedFiles.Digest> {
+    private static final long serialVersionUID = 1L;
+
+    private final String includes;
+
+    /**
+     * @param includes Comma or space separated Ant-style globs, relative to the
+     *                 workspace.
+     */
+    public WatchedFiles(String includes) {
+        this.includes = includes;
+    }
+
+    public Digest invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        if (!workspace.isDirectory()) {
+            return new Digest(ScriptDigest.of(includes), 0);
+        }
+
+        String[] files = Util.createFileSet(workspace, includes).getDirectoryScanner().getIncludedFiles();
+        Arrays.sort(files);
+        ScriptDigest digest = new ScriptDigest().update(includes);
+        for (String file : files) {
+            // The same on every platform, like the globs.
+            digest.update(file.replace(File.separatorChar, '/')).update(new File(workspace, file));
+        }
+        return new Digest(digest.toHex(), files.length);
+    }
+
+    public static final class Digest implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String hex;
+        private final int files;
+
+        Digest(String hex, int files) {
+            this.hex = hex;
+            this.files = files;
+        }
+
+        public String getHex() {
+            return hex;
+        }
+
+        /**
+         * @return How many files the globs matched.
+         */
+        public int getFiles() {
+            return files;
+        }
+    }
+}
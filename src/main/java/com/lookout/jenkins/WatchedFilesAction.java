@@ -0,0 +1,26 @@
+package com.lookout.jenkins;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Remembers, with a build, the digest of the files its script watched, so the
+ * next build can reuse the environment the build injected if the files did
+ * not change. The environment itself is read from the build's
+ * {@link EnvironmentPluginAction}, so it is only stored once.
+ */
+public class WatchedFilesAction extends InvisibleAction {
+    private final String key;
+
+    /**
+     * @param key The digest of the watched files, combined with everything
+     *            else the environment depends on, see
+     *            {@link EnvironmentScript#getWatchKey}.
+     */
+    public WatchedFilesAction(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
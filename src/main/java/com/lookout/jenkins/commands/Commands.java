@@ -11,6 +11,15 @@ public class Commands {
     public final static String BATCH_SCRIPT = "batchScript";
     public final static String BATCH_SCRIPT_DISPLAY_NAME = "Batch script";
 
+    public final static String DELIVERY_TEMP_FILE = "tempFile";
+    public final static String DELIVERY_TEMP_FILE_DISPLAY_NAME = "New temporary file for every build";
+
+    public final static String DELIVERY_CACHED_FILE = "cachedFile";
+    public final static String DELIVERY_CACHED_FILE_DISPLAY_NAME = "Reusable file cached on each node";
+
+    public final static String DELIVERY_STDIN = "stdin";
+    public final static String DELIVERY_STDIN_DISPLAY_NAME = "Standard input (Unix scripts without shebang only)";
+
     public static boolean isShebangs(String script) {
         if (script.startsWith("#!")) {
             return true;
@@ -18,4 +27,21 @@ public class Commands {
         return false;
     }
 
+    public static String getExtension(String scriptType) {
+        if (POWER_SHELL.equals(scriptType)) {
+            return ".ps1";
+        } else if (BATCH_SCRIPT.equals(scriptType)) {
+            return ".bat";
+        }
+        return ".sh";
+    }
+
+    /**
+     * @return Whether the interpreter for this script can read the script from
+     *         its standard input instead of a file.
+     */
+    public static boolean supportsStdin(String scriptType, String script) {
+        return !POWER_SHELL.equals(scriptType) && !BATCH_SCRIPT.equals(scriptType) && !isShebangs(script);
+    }
+
 }
@@ -0,0 +1,128 @@
+package com.lookout.jenkins.commands;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Shell;
+import jenkins.model.Jenkins;
+
+/**
+ * Remembers, for each node, which shell runs Unix scripts and which
+ * interpreters are known to exist there, so that building the command line of
+ * a script needs no remote call once the first build on the node has made it.
+ *
+ * Nodes are told apart by their channel, so a reconnected agent, which gets a
+ * new channel, starts over, and the entry of the old one is dropped along with
+ * it.
+ * A change of the global shell setting is noticed by comparing it with the
+ * setting a node's entry was made for. Missing interpreters are not
+ * remembered, so installing one takes effect with the next build.
+ */
+public final class Interpreters {
+    // Shebang lines can be edited any number of times, so only the most
+    // recently used ones are kept.
+    private static final int MAX_SHEBANGS = 256;
+
+    private static final Map<VirtualChannel, Entry> ENTRIES = Collections
+            .synchronizedMap(new WeakHashMap<VirtualChannel, Entry>());
+
+    @SuppressWarnings("serial")
+    private static final Map<String, String[]> SHEBANGS = Collections
+            .synchronizedMap(new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+                    return size() > MAX_SHEBANGS;
+                }
+            });
+
+    private Interpreters() {
+    }
+
+    /**
+     * @return Whether Unix scripts run in the shell Jenkins picks by default,
+     *         rather than one configured globally.
+     */
+    public static boolean isDefaultShell() {
+        return Jenkins.get().getDescriptorByType(Shell.DescriptorImpl.class).getShell() == null;
+    }
+
+    /**
+     * @return The shell that runs Unix scripts on the node of channel.
+     * @throws AbortException If the shell does not exist there.
+     */
+    public static String getShell(VirtualChannel channel) throws IOException, InterruptedException {
+        Shell.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(Shell.DescriptorImpl.class);
+        String setting = descriptor.getShell();
+        Entry entry = entry(channel);
+        String[] resolved = entry.shell;
+        if (resolved == null || !Objects.equals(resolved[0], setting)) {
+            String shell = descriptor.getShellOrDefault(channel);
+            checkExists(channel, entry, shell);
+            resolved = new String[] { setting, shell };
+            entry.shell = resolved;
+        }
+        return resolved[1];
+    }
+
+    /**
+     * @param line The first line of a script, including the <tt>#!</tt>.
+     * @return The interpreter and arguments it names.
+     * @throws AbortException If the interpreter does not exist on the node of
+     *                        channel.
+     */
+    public static String[] getShebang(VirtualChannel channel, String line) throws IOException, InterruptedException {
+        String[] tokens = SHEBANGS.get(line);
+        if (tokens == null) {
+            tokens = Util.tokenize(line.trim().substring(2));
+            SHEBANGS.put(line, tokens);
+        }
+        if (tokens.length == 0) {
+            throw new AbortException("[environment-script] The script names no interpreter after #!");
+        }
+        checkExists(channel, entry(channel), tokens[0]);
+        return tokens;
+    }
+
+    private static Entry entry(VirtualChannel channel) {
+        synchronized (ENTRIES) {
+            Entry entry = ENTRIES.get(channel);
+            if (entry == null) {
+                entry = new Entry();
+                ENTRIES.put(channel, entry);
+            }
+            return entry;
+        }
+    }
+
+    private static void checkExists(VirtualChannel channel, Entry entry, String interpreter)
+            throws IOException, InterruptedException {
+        // Names without a directory are looked up on the PATH when launched.
+        if (entry.verified.contains(interpreter)
+                || interpreter.indexOf('/') < 0 && interpreter.indexOf('\\') < 0) {
+            return;
+        }
+        if (!new FilePath(channel, interpreter).exists()) {
+            throw new AbortException("[environment-script] The interpreter " + interpreter + " does not exist on "
+                    + (channel instanceof Channel ? ((Channel) channel).getName() : "the controller"));
+        }
+        entry.verified.add(interpreter);
+    }
+
+    private static final class Entry {
+        // The global shell setting and the shell it resolved to.
+        volatile String[] shell;
+        // Interpreters known to exist.
+        final Set<String> verified = ConcurrentHashMap.newKeySet();
+    }
+}
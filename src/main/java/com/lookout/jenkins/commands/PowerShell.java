@@ -1,6 +1,8 @@
 package com.lookout.jenkins.commands;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 
 import hudson.FilePath;
@@ -18,4 +20,74 @@ public class PowerShell {
         return (String[]) cml.toArray(new String[cml.size()]);
     }
 
+    /**
+     * Reads requests like the Unix shell daemon, see
+     * {@link UnixShell#buildDaemonCommandLine()}, and runs each script in a
+     * runspace of its own. The process environment is shared by all
+     * runspaces, so it is swapped for the script's and restored afterwards.
+     *
+     * The script is called with <tt>&amp;</tt> like {@link #buildCommandLine}
+     * does, and what powershell.exe would print to its standard output, which
+     * includes Write-Host, is written to the output file line by line as the
+     * script runs. The exit code is worked out the same way as well: 1 if the
+     * script failed, which includes <tt>exit</tt> with anything but 0, and 0
+     * otherwise.
+     */
+    private static final String DAEMON =
+            "$ErrorActionPreference = 'Continue'\n"
+            + "$run = {\n"
+            + "  param($script, $out)\n"
+            + "  $writer = New-Object IO.StreamWriter($out, $false, (New-Object Text.UTF8Encoding($false)))\n"
+            + "  $writer.AutoFlush = $true\n"
+            + "  try {\n"
+            + "    & { & $script; $global:__es_ok = $? } 3>&1 4>&1 5>&1 6>&1 | Out-String -Stream"
+            + " | ForEach-Object { $writer.WriteLine($_) }\n"
+            + "  } finally {\n"
+            + "    $writer.Dispose()\n"
+            + "  }\n"
+            + "  if ($global:__es_ok) { 0 } else { 1 }\n"
+            + "}\n"
+            + "while ($null -ne ($line = [Console]::In.ReadLine())) {\n"
+            + "  $id, $cwd, $envFile, $script, $out, $err = $line.Split(\"`t\")\n"
+            + "  $saved = [Environment]::GetEnvironmentVariables()\n"
+            + "  $code = 1\n"
+            + "  $rs = $null\n"
+            + "  $ps = $null\n"
+            + "  try {\n"
+            + "    foreach ($name in $saved.Keys) { [Environment]::SetEnvironmentVariable($name, $null) }\n"
+            + "    foreach ($kv in [IO.File]::ReadAllText($envFile, [Text.Encoding]::UTF8).Split([char]0)) {\n"
+            + "      $i = $kv.IndexOf('=')\n"
+            + "      if ($i -gt 0) { [Environment]::SetEnvironmentVariable($kv.Substring(0, $i), $kv.Substring($i + 1)) }\n"
+            + "    }\n"
+            + "    [Environment]::SetEnvironmentVariable('PSExecutionPolicyPreference', 'Bypass')\n"
+            + "    [Environment]::CurrentDirectory = $cwd\n"
+            + "    $rs = [RunspaceFactory]::CreateRunspace()\n"
+            + "    $rs.Open()\n"
+            + "    $rs.SessionStateProxy.Path.SetLocation($cwd) | Out-Null\n"
+            + "    $ps = [PowerShell]::Create()\n"
+            + "    $ps.Runspace = $rs\n"
+            + "    $result = $ps.AddScript($run.ToString()).AddArgument($script).AddArgument($out).Invoke()\n"
+            + "    $code = [int]$result[-1]\n"
+            + "  } catch {\n"
+            + "    [IO.File]::AppendAllText($err, \"$_`r`n\")\n"
+            + "  } finally {\n"
+            + "    if ($ps) {\n"
+            + "      [IO.File]::AppendAllLines($err, [string[]]@($ps.Streams.Error | ForEach-Object { \"$_\" }))\n"
+            + "      $ps.Dispose()\n"
+            + "    }\n"
+            + "    if ($rs) { $rs.Dispose() }\n"
+            + "    foreach ($name in [Environment]::GetEnvironmentVariables().Keys) { [Environment]::SetEnvironmentVariable($name, $null) }\n"
+            + "    foreach ($name in $saved.Keys) { [Environment]::SetEnvironmentVariable($name, $saved[$name]) }\n"
+            + "  }\n"
+            + "  [Console]::Out.WriteLine(\"$id $code\")\n"
+            + "  [Console]::Out.Flush()\n"
+            + "}\n";
+
+    // A PowerShell that keeps running scripts it is sent, see DAEMON.
+    public static String[] buildDaemonCommandLine() {
+        String encoded = Base64.getEncoder().encodeToString(DAEMON.getBytes(StandardCharsets.UTF_16LE));
+        return new String[] { "powershell.exe", "-NoProfile", "-NonInteractive", "-ExecutionPolicy", "ByPass",
+                "-EncodedCommand", encoded };
+    }
+
 }
@@ -1,24 +1,47 @@
 package com.lookout.jenkins.commands;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import hudson.FilePath;
-import hudson.Util;
 
 public class Shebangs {
 
+    /**
+     * Like {@link #resolveCommandLine}, with its checked exceptions wrapped.
+     *
+     * @throws UncheckedIOException If the interpreter does not exist on the
+     *                              node of scriptFile, or that can't be told.
+     */
     public static String[] parseCommandLine(String script, FilePath scriptFile) {
+        try {
+            return resolveCommandLine(script, scriptFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @throws hudson.AbortException If the interpreter does not exist on the
+     *                               node of scriptFile.
+     */
+    public static String[] resolveCommandLine(String script, FilePath scriptFile)
+            throws IOException, InterruptedException {
         // Find first line, or just entire script if it's one line.
         int end = script.indexOf('\n');
         if (end < 0)
             end = script.length();
 
-        String interpreter = script.substring(0, end).trim();
-        interpreter = interpreter.substring(2);
+        String[] interpreter = Interpreters.getShebang(scriptFile.getChannel(), script.substring(0, end));
 
-        List<String> cml = new ArrayList<String>(Arrays.asList(Util.tokenize(interpreter)));
+        List<String> cml = new ArrayList<String>(interpreter.length + 1);
+        cml.addAll(Arrays.asList(interpreter));
         cml.add(scriptFile.getRemote());
 
         return cml.toArray(new String[cml.size()]);
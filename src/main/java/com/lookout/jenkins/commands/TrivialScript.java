@@ -0,0 +1,243 @@
+package com.lookout.jenkins.commands;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Unix script that does nothing but echo words made of constant text and
+ * variable expansions, such as <tt>echo FOO=bar</tt> or
+ * <tt>echo "X=${BUILD_NUMBER}"</tt>, which can be evaluated without starting a
+ * shell.
+ *
+ * The subset is kept small enough that the result is what any POSIX shell
+ * prints: only ASCII text, no single quotes, backslashes, globs, command
+ * substitutions or echo options, and only variables the environment sets
+ * explicitly. A value that the shell would split, glob or treat as an escape
+ * makes {@link #evaluate} give up, so the script runs as usual.
+ */
+public final class TrivialScript {
+    // Characters that stand for themselves outside of quotes.
+    private static final String UNQUOTED = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789_=+-./:,@%";
+
+    // Set by the shell itself, so the environment does not tell their value.
+    private static final Set<String> SHELL_VARIABLES = new HashSet<String>(Arrays.asList("PWD", "OLDPWD", "SHLVL",
+            "PPID", "RANDOM", "LINENO", "SECONDS", "IFS", "OPTIND", "OPTARG", "PS1", "PS2", "PS4", "UID", "EUID",
+            "HOSTNAME", "HOSTTYPE", "MACHTYPE", "OSTYPE", "SHELLOPTS", "BASHOPTS", "GROUPS", "HISTCMD", "_"));
+
+    // Make the shell run other code or split and echo differently.
+    private static final String[] STARTUP_VARIABLES = { "BASH_ENV", "ENV", "IFS", "SHELLOPTS", "BASHOPTS" };
+
+    // Each echo, as its words, as their parts: a String for constant text or a
+    // Variable.
+    private final List<List<Word>> echoes;
+
+    private TrivialScript(List<List<Word>> echoes) {
+        this.echoes = echoes;
+    }
+
+    /**
+     * @return The script, or null if it does anything but echo.
+     */
+    public static TrivialScript parse(String script) {
+        List<List<Word>> echoes = new ArrayList<List<Word>>();
+        for (String line : script.split("\n", -1)) {
+            line = trim(line);
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            if (!line.startsWith("echo") || line.length() > 4 && !isBlank(line.charAt(4))) {
+                return null;
+            }
+            List<Word> words = parseWords(line, 4);
+            if (words == null) {
+                return null;
+            }
+            echoes.add(words);
+        }
+        return new TrivialScript(echoes);
+    }
+
+    /**
+     * @return What the script prints with env as its environment, or null if
+     *         that takes a shell to tell.
+     */
+    public String evaluate(Map<String, String> env) {
+        for (String variable : STARTUP_VARIABLES) {
+            if (env.containsKey(variable)) {
+                return null;
+            }
+        }
+
+        StringBuilder output = new StringBuilder();
+        List<String> values = new ArrayList<String>();
+        for (List<Word> echo : echoes) {
+            values.clear();
+            for (Word word : echo) {
+                String value = word.evaluate(env);
+                if (value == null) {
+                    return null;
+                }
+                // An unquoted word that expands to nothing is no word at all.
+                if (!value.isEmpty() || word.quoted) {
+                    values.add(value);
+                }
+            }
+            if (!values.isEmpty() && values.get(0).startsWith("-")) {
+                return null;
+            }
+            output.append(String.join(" ", values)).append('\n');
+        }
+        return output.toString();
+    }
+
+    private static List<Word> parseWords(String line, int i) {
+        List<Word> words = new ArrayList<Word>();
+        int end = line.length();
+        while (true) {
+            while (i < end && isBlank(line.charAt(i))) {
+                i++;
+            }
+            if (i == end) {
+                return words;
+            }
+
+            Word word = new Word();
+            while (i < end && !isBlank(line.charAt(i))) {
+                char c = line.charAt(i);
+                if (c == '"') {
+                    word.quoted = true;
+                    i++;
+                    while (true) {
+                        if (i == end) {
+                            return null;
+                        }
+                        c = line.charAt(i);
+                        if (c == '"') {
+                            i++;
+                            break;
+                        } else if (c == '$') {
+                            i = word.parseVariable(line, i, true);
+                        } else if (c == '\\' || c == '`' || c < 0x20 && c != '\t' || c > 0x7e) {
+                            return null;
+                        } else {
+                            word.parts.add(String.valueOf(c));
+                            i++;
+                        }
+                        if (i < 0) {
+                            return null;
+                        }
+                    }
+                } else if (c == '$') {
+                    i = word.parseVariable(line, i, false);
+                    if (i < 0) {
+                        return null;
+                    }
+                } else if (UNQUOTED.indexOf(c) >= 0) {
+                    word.parts.add(String.valueOf(c));
+                    i++;
+                } else {
+                    return null;
+                }
+            }
+            words.add(word);
+        }
+    }
+
+    private static String trim(String line) {
+        int start = 0, end = line.length();
+        while (start < end && isBlank(line.charAt(start))) {
+            start++;
+        }
+        while (end > start && isBlank(line.charAt(end - 1))) {
+            end--;
+        }
+        return line.substring(start, end);
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isNameStart(char c) {
+        return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '_';
+    }
+
+    private static boolean isNamePart(char c) {
+        return isNameStart(c) || c >= '0' && c <= '9';
+    }
+
+    private static final class Word {
+        final List<Object> parts = new ArrayList<Object>();
+        boolean quoted;
+
+        /**
+         * Reads <tt>$NAME</tt> or <tt>${NAME}</tt> starting at the dollar sign.
+         *
+         * @return The position after it, or -1 if it is anything else.
+         */
+        int parseVariable(String line, int i, boolean inQuotes) {
+            int end = line.length();
+            boolean braces = i + 1 < end && line.charAt(i + 1) == '{';
+            int start = braces ? i + 2 : i + 1;
+            int nameEnd = start;
+            if (nameEnd < end && isNameStart(line.charAt(nameEnd))) {
+                nameEnd++;
+                while (nameEnd < end && isNamePart(line.charAt(nameEnd))) {
+                    nameEnd++;
+                }
+            }
+            if (nameEnd == start || braces && (nameEnd == end || line.charAt(nameEnd) != '}')) {
+                return -1;
+            }
+
+            String name = line.substring(start, nameEnd);
+            if (SHELL_VARIABLES.contains(name) || name.startsWith("BASH")) {
+                return -1;
+            }
+            parts.add(new Variable(name, inQuotes));
+            return braces ? nameEnd + 1 : nameEnd;
+        }
+
+        String evaluate(Map<String, String> env) {
+            StringBuilder value = new StringBuilder();
+            for (Object part : parts) {
+                if (part instanceof String) {
+                    value.append((String) part);
+                    continue;
+                }
+
+                Variable variable = (Variable) part;
+                // Not set by the build, but maybe inherited from the node.
+                String expanded = env.get(variable.name);
+                if (expanded == null) {
+                    return null;
+                }
+                for (int i = 0; i < expanded.length(); i++) {
+                    char c = expanded.charAt(i);
+                    // Some echos treat backslashes as escapes, and the shell
+                    // splits and globs unquoted values.
+                    if (c == '\\' || c > 0x7e || c < 0x20 && (variable.quoted ? c != '\t' && c != '\n' : true)
+                            || !variable.quoted && (c == ' ' || c == '*' || c == '?' || c == '[')) {
+                        return null;
+                    }
+                }
+                value.append(expanded);
+            }
+            return value.toString();
+        }
+    }
+
+    private static final class Variable {
+        final String name;
+        final boolean quoted;
+
+        Variable(String name, boolean quoted) {
+            this.name = name;
+            this.quoted = quoted;
+        }
+    }
+}
@@ -1,18 +1,37 @@
 package com.lookout.jenkins.commands;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import hudson.FilePath;
-import hudson.tasks.Shell;
-import jenkins.model.Jenkins;
 
 public class UnixShell {
 
+    /**
+     * Like {@link #resolveCommandLine}, with its checked exceptions wrapped.
+     *
+     * @throws UncheckedIOException If the shell does not exist on the node of
+     *                              scriptFile, or that can't be told.
+     */
     public static String[] buildCommandLine(FilePath scriptFile) {
-        Shell.DescriptorImpl shellDescriptor = Jenkins.get()
-                .getDescriptorByType(Shell.DescriptorImpl.class);
-        final String shell = shellDescriptor.getShellOrDefault(scriptFile.getChannel());
+        try {
+            return resolveCommandLine(scriptFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @throws hudson.AbortException If the shell does not exist on the node of
+     *                               scriptFile.
+     */
+    public static String[] resolveCommandLine(FilePath scriptFile) throws IOException, InterruptedException {
+        final String shell = Interpreters.getShell(scriptFile.getChannel());
 
         List<String> cml = new ArrayList<String>();
         cml.add(shell);
@@ -22,4 +41,44 @@ public class UnixShell {
         return (String[]) cml.toArray(new String[cml.size()]);
     }
 
+    // The shell reads the script from its standard input, on the node of ws.
+    public static String[] buildStdinCommandLine(FilePath ws) throws IOException, InterruptedException {
+        final String shell = Interpreters.getShell(ws.getChannel());
+
+        List<String> cml = new ArrayList<String>();
+        cml.add(shell);
+        cml.add("-e");
+        cml.add("-s");
+
+        return (String[]) cml.toArray(new String[cml.size()]);
+    }
+
+    /**
+     * Reads one request per line from its standard input: an id, the working
+     * directory, a file with the NUL separated environment, the script and the
+     * files for its standard output and error, separated by tabs. Each script
+     * is sourced in a subshell with only that environment, so nothing it
+     * defines outlives it, and the id is echoed back with the exit code.
+     */
+    private static final String DAEMON = "while IFS=$'\\t' read -r __es_id __es_cwd __es_env __es_script __es_out __es_err; do\n"
+            + "  (\n"
+            + "    for __es_name in $(compgen -e); do unset \"$__es_name\" 2>/dev/null; done\n"
+            + "    while IFS= read -r -d '' __es_kv; do export \"$__es_kv\"; done < \"$__es_env\"\n"
+            + "    cd \"$__es_cwd\" || exit 1\n"
+            + "    set -e\n"
+            + "    . \"$__es_script\"\n"
+            + "  ) < /dev/null > \"$__es_out\" 2> \"$__es_err\"\n"
+            + "  echo \"$__es_id $?\"\n"
+            + "done\n";
+
+    // The shell kept running to run the scripts it is sent, see DAEMON, or null
+    // if shell is not bash, which DAEMON needs.
+    public static String[] buildDaemonCommandLine(String shell) {
+        String name = shell.substring(Math.max(shell.lastIndexOf('/'), shell.lastIndexOf('\\')) + 1);
+        if (!name.equals("bash")) {
+            return null;
+        }
+        return new String[] { shell, "-c", DAEMON };
+    }
+
 }
@@ -0,0 +1,295 @@
+package com.lookout.jenkins.output;
+
+import java.nio.CharBuffer;
+import java.util.regex.Pattern;
+
+/**
+ * {@link OutputParser} for a single JSON object mapping names to values, such
+ * as <tt>{"FOO": "bar", "BUILD_NUMBER": 42}</tt>.
+ *
+ * Values can be strings, numbers or booleans; a <tt>null</tt> value leaves the
+ * variable unset. Nested objects and arrays are rejected, since there is no way
+ * to put them into the environment. Runs of unescaped characters are copied
+ * straight from the decoded output into the name or value, so apart from
+ * escape sequences nothing is looked at twice.
+ */
+public class JsonOutputParser extends OutputParser {
+    private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+    private enum State {
+        BEFORE_OBJECT, BEFORE_FIRST_KEY, BEFORE_KEY, IN_KEY, AFTER_KEY, BEFORE_VALUE, IN_VALUE, IN_LITERAL,
+        AFTER_VALUE, AFTER_OBJECT
+    }
+
+    private final StringBuilder key = new StringBuilder();
+    private final StringBuilder value = new StringBuilder();
+
+    private State state = State.BEFORE_OBJECT;
+    private boolean escape;
+    // Number of hex digits still expected for a unicode escape.
+    private int unicodeDigits;
+    private int unicodeValue;
+    private long lineNumber = 1;
+
+    /**
+     * @param maxOutputSize The maximum number of bytes to accept, or zero for no
+     *                      limit.
+     */
+    public JsonOutputParser(long maxOutputSize) {
+        super(maxOutputSize);
+    }
+
+    public JsonOutputParser() {
+        this(0);
+    }
+
+    @Override
+    protected void parse(CharBuffer chars) {
+        char[] array = chars.array();
+        int i = chars.arrayOffset() + chars.position();
+        int end = chars.arrayOffset() + chars.limit();
+
+        while (i < end && !hasFailed()) {
+            if (state == State.IN_KEY || state == State.IN_VALUE) {
+                i = string(array, i, end, state == State.IN_KEY ? key : value);
+            } else if (state == State.IN_LITERAL) {
+                int start = i;
+                while (i < end && isLiteral(array[i])) {
+                    i++;
+                }
+                value.append(array, start, i - start);
+                if (i < end) {
+                    endLiteral();
+                }
+            } else {
+                structure(array[i++]);
+            }
+        }
+        chars.position(chars.limit());
+    }
+
+    @Override
+    protected void endOfInput() {
+        // Scripts that print nothing set nothing.
+        if (state != State.BEFORE_OBJECT && state != State.AFTER_OBJECT) {
+            fail(new OutputParseException("Unexpected end of output", lineNumber));
+        }
+    }
+
+    @Override
+    protected int pendingLength() {
+        return key.length() + value.length();
+    }
+
+    private void structure(char c) {
+        if (c == '\n') {
+            lineNumber++;
+            return;
+        } else if (c == ' ' || c == '\t' || c == '\r') {
+            return;
+        }
+
+        switch (state) {
+        case BEFORE_OBJECT:
+            if (c == '{') {
+                state = State.BEFORE_FIRST_KEY;
+            } else {
+                error("Expected '{'");
+            }
+            break;
+        case BEFORE_FIRST_KEY:
+            if (c == '}') {
+                state = State.AFTER_OBJECT;
+            } else if (c == '"') {
+                state = State.IN_KEY;
+            } else {
+                error("Expected a variable name");
+            }
+            break;
+        case BEFORE_KEY:
+            if (c == '"') {
+                state = State.IN_KEY;
+            } else {
+                error("Expected a variable name");
+            }
+            break;
+        case AFTER_KEY:
+            if (c == ':') {
+                state = State.BEFORE_VALUE;
+            } else {
+                error("Expected ':'");
+            }
+            break;
+        case BEFORE_VALUE:
+            if (c == '"') {
+                state = State.IN_VALUE;
+            } else if (c == '{' || c == '[') {
+                error("Nested objects and arrays are not supported");
+            } else if (isLiteral(c)) {
+                value.append(c);
+                state = State.IN_LITERAL;
+            } else {
+                error("Expected a value");
+            }
+            break;
+        case AFTER_VALUE:
+            if (c == ',') {
+                state = State.BEFORE_KEY;
+            } else if (c == '}') {
+                state = State.AFTER_OBJECT;
+            } else {
+                error("Expected ',' or '}'");
+            }
+            break;
+        case AFTER_OBJECT:
+            error("Unexpected output after the object");
+            break;
+        default:
+            throw new IllegalStateException(state.name());
+        }
+    }
+
+    /**
+     * Reads the contents of a string up to the closing quote, or to the end of
+     * the buffer.
+     *
+     * @return The position after the last character read.
+     */
+    private int string(char[] array, int i, int end, StringBuilder target) {
+        while (i < end) {
+            if (escape || unicodeDigits > 0) {
+                escape(array[i++], target);
+                if (hasFailed()) {
+                    return i;
+                }
+                continue;
+            }
+
+            int start = i;
+            char c = 0;
+            while (i < end) {
+                c = array[i];
+                if (c == '"' || c == '\\' || c < 0x20) {
+                    break;
+                }
+                i++;
+            }
+            target.append(array, start, i - start);
+            if (i == end) {
+                return i;
+            }
+
+            i++;
+            if (c == '\\') {
+                escape = true;
+            } else if (c == '"') {
+                endString();
+                return i;
+            } else {
+                error("Unescaped control character in string");
+                return i;
+            }
+        }
+        return i;
+    }
+
+    private void escape(char c, StringBuilder target) {
+        if (unicodeDigits > 0) {
+            int hex = hexValue(c);
+            if (hex < 0) {
+                error("Malformed \\uxxxx encoding");
+                return;
+            }
+            unicodeValue = (unicodeValue << 4) + hex;
+            if (--unicodeDigits == 0) {
+                target.append((char) unicodeValue);
+            }
+            return;
+        }
+
+        escape = false;
+        switch (c) {
+        case '"':
+        case '\\':
+        case '/':
+            target.append(c);
+            break;
+        case 'b':
+            target.append('\b');
+            break;
+        case 'f':
+            target.append('\f');
+            break;
+        case 'n':
+            target.append('\n');
+            break;
+        case 'r':
+            target.append('\r');
+            break;
+        case 't':
+            target.append('\t');
+            break;
+        case 'u':
+            unicodeDigits = 4;
+            unicodeValue = 0;
+            break;
+        default:
+            error("Invalid escape sequence '\\" + c + "'");
+        }
+    }
+
+    private void endString() {
+        if (state == State.IN_KEY) {
+            state = State.AFTER_KEY;
+        } else {
+            endValue(true);
+        }
+    }
+
+    private void endLiteral() {
+        String literal = value.toString();
+        if (literal.equals("null")) {
+            endValue(false);
+        } else if (literal.equals("true") || literal.equals("false") || NUMBER.matcher(literal).matches()) {
+            endValue(true);
+        } else {
+            error("Invalid value '" + literal + "'");
+        }
+    }
+
+    /**
+     * @param set Whether to set the variable, or only check the name.
+     */
+    private void endValue(boolean set) {
+        if (key.length() == 0) {
+            error("Empty variable name");
+            return;
+        }
+        if (set) {
+            put(key.toString(), value.toString());
+        }
+        key.setLength(0);
+        value.setLength(0);
+        state = State.AFTER_VALUE;
+    }
+
+    private void error(String message) {
+        fail(new OutputParseException(message, lineNumber));
+    }
+
+    private static boolean isLiteral(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '-'
+                || c == '+' || c == '.';
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
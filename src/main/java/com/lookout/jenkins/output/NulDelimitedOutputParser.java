@@ -0,0 +1,125 @@
+package com.lookout.jenkins.output;
+
+import java.nio.CharBuffer;
+
+/**
+ * {@link OutputParser} for <tt>KEY=VALUE</tt> records that each end with a NUL
+ * character, as printed by <tt>env -0</tt>.
+ *
+ * Nothing is escaped: the name ends at the first <tt>=</tt> and the value at
+ * the next NUL, so values can hold backslashes, colons and newlines as they
+ * are. The decoded output is scanned in place and each name and value is
+ * copied once, into the string that ends up in the environment.
+ */
+public class NulDelimitedOutputParser extends OutputParser {
+    private final StringBuilder key = new StringBuilder();
+    private final StringBuilder value = new StringBuilder();
+
+    private boolean inValue;
+    private long completedLines;
+    private long recordLine = 1;
+
+    /**
+     * @param maxOutputSize The maximum number of bytes to accept, or zero for no
+     *                      limit.
+     */
+    public NulDelimitedOutputParser(long maxOutputSize) {
+        super(maxOutputSize);
+    }
+
+    public NulDelimitedOutputParser() {
+        this(0);
+    }
+
+    @Override
+    protected void parse(CharBuffer chars) {
+        char[] array = chars.array();
+        int i = chars.arrayOffset() + chars.position();
+        int end = chars.arrayOffset() + chars.limit();
+
+        while (i < end) {
+            int start = i;
+            if (!inValue) {
+                while (i < end) {
+                    char c = array[i];
+                    if (c == '=' || c == '\0') {
+                        break;
+                    } else if (c == '\n') {
+                        completedLines++;
+                    }
+                    i++;
+                }
+                key.append(array, start, i - start);
+                if (i == end) {
+                    break;
+                }
+                if (array[i++] == '=') {
+                    inValue = true;
+                    continue;
+                }
+            } else {
+                while (i < end) {
+                    char c = array[i];
+                    if (c == '\0') {
+                        break;
+                    } else if (c == '\n') {
+                        completedLines++;
+                    }
+                    i++;
+                }
+                value.append(array, start, i - start);
+                if (i == end) {
+                    break;
+                }
+                i++;
+            }
+
+            endRecord();
+            if (hasFailed()) {
+                break;
+            }
+        }
+        chars.position(chars.limit());
+    }
+
+    @Override
+    protected void endOfInput() {
+        // The last record does not need a NUL, so a trailing newline from echo is
+        // ignored rather than reported as a record without a value.
+        if (inValue || !isBlank(key)) {
+            endRecord();
+        }
+    }
+
+    @Override
+    protected int pendingLength() {
+        return key.length() + value.length();
+    }
+
+    private void endRecord() {
+        if (!inValue) {
+            // Skip empty records, like those from a doubled NUL.
+            if (key.length() > 0) {
+                fail(new OutputParseException("Missing '=' in record", recordLine));
+            }
+        } else if (key.length() == 0) {
+            fail(new OutputParseException("Empty variable name", recordLine));
+        } else {
+            put(key.toString(), value.toString());
+        }
+
+        key.setLength(0);
+        value.setLength(0);
+        inValue = false;
+        recordLine = completedLines + 1;
+    }
+
+    private static boolean isBlank(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isWhitespace(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
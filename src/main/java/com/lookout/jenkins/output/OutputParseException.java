@@ -0,0 +1,24 @@
+package com.lookout.jenkins.output;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a line of script output cannot be parsed.
+ */
+public class OutputParseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long lineNumber;
+
+    public OutputParseException(String message, long lineNumber) {
+        super(message + " on line " + lineNumber);
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * @return The 1-based number of the line that could not be parsed.
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+}
@@ -0,0 +1,255 @@
+package com.lookout.jenkins.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link OutputStream} that parses UTF-8 script output into variables while it
+ * is being written. Subclasses implement the syntax, this class takes care of
+ * decoding, the size limit and bookkeeping.
+ *
+ * Parsing stops at the first malformed input, once more than the maximum
+ * output size has been written or once a single variable grows past the
+ * maximum variable size; the rest of the output is then discarded and the
+ * problem is reported by {@link #getFailure()}. Besides the variables read so
+ * far, only the one being read is held in memory, so with both limits set the
+ * memory a parser uses is bounded no matter how much a script prints.
+ */
+public abstract class OutputParser extends OutputStream {
+    public static final String FORMAT_PROPERTIES = "properties";
+    public static final String FORMAT_PROPERTIES_DISPLAY_NAME = "Properties file";
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_JSON_DISPLAY_NAME = "JSON object";
+    public static final String FORMAT_NUL = "nul";
+    public static final String FORMAT_NUL_DISPLAY_NAME = "NUL-terminated KEY=VALUE records (env -0)";
+
+    private final long maxOutputSize;
+    private int maxVariableSize;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // Holds the start of a multi-byte character that was split across writes.
+    private final ByteBuffer remainder = ByteBuffer.allocate(16);
+    private final CharBuffer chars = CharBuffer.allocate(8192);
+    private final Map<String, String> variables = new LinkedHashMap<String, String>();
+
+    private long outputSize;
+    private IOException failure;
+    private boolean closed;
+    private long parseNanos;
+    private Runnable onFailure;
+
+    /**
+     * @param maxOutputSize The maximum number of bytes to accept, or zero for no
+     *                      limit.
+     */
+    protected OutputParser(long maxOutputSize) {
+        this.maxOutputSize = maxOutputSize;
+    }
+
+    /**
+     * @param format One of the FORMAT_ constants, or null for properties.
+     */
+    public static OutputParser create(String format, long maxOutputSize) {
+        if (FORMAT_JSON.equals(format)) {
+            return new JsonOutputParser(maxOutputSize);
+        } else if (FORMAT_NUL.equals(format)) {
+            return new NulDelimitedOutputParser(maxOutputSize);
+        }
+        return new PropertiesOutputParser(maxOutputSize);
+    }
+
+    /**
+     * @param maxVariableSize The maximum number of characters of a single
+     *                        variable, or zero for no limit.
+     */
+    public static OutputParser create(String format, long maxOutputSize, int maxVariableSize) {
+        OutputParser parser = create(format, maxOutputSize);
+        parser.maxVariableSize = maxVariableSize;
+        return parser;
+    }
+
+    /**
+     * Has onFailure run, on the thread that writes the output, as soon as
+     * parsing stops because of a failure, or right away if it already has.
+     * The writer should not block in it.
+     */
+    public void setOnFailure(Runnable onFailure) {
+        boolean failed;
+        synchronized (this) {
+            this.onFailure = onFailure;
+            failed = failure != null;
+        }
+        if (failed) {
+            onFailure.run();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        outputSize += len;
+        if (failure != null) {
+            return;
+        }
+        if (maxOutputSize > 0 && outputSize > maxOutputSize) {
+            fail(new OutputTooLargeException(maxOutputSize));
+            return;
+        }
+
+        long start = System.nanoTime();
+        int end = off + len;
+        // Finish a character that was split across two writes one byte at a time.
+        while (remainder.position() > 0 && off < end) {
+            remainder.put(b[off++]);
+            remainder.flip();
+            decode(remainder, false);
+            remainder.compact();
+        }
+
+        ByteBuffer input = ByteBuffer.wrap(b, off, end - off);
+        decode(input, false);
+        if (input.hasRemaining()) {
+            remainder.put(input);
+        }
+        parseNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Parses whatever is left of the output. The variables are complete once
+     * this has been called.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (failure != null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        remainder.flip();
+        decode(remainder, true);
+        remainder.clear();
+        while (decoder.flush(chars).isOverflow()) {
+            drain();
+        }
+        drain();
+
+        if (failure == null) {
+            endOfInput();
+        }
+        parseNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * @return The variables read so far, in the order they first appeared.
+     */
+    public Map<String, String> getVariables() {
+        return Collections.unmodifiableMap(variables);
+    }
+
+    /**
+     * @return The number of bytes written to this stream, including any that
+     *         were discarded.
+     */
+    public long getOutputSize() {
+        return outputSize;
+    }
+
+    /**
+     * @return How long was spent decoding and parsing, in nanoseconds. This
+     *         does not include time spent waiting for output.
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * @return Why parsing stopped, or null if the output was read successfully.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Consumes decoded output. Implementations read all remaining characters
+     * of chars, unless they {@link #fail} along the way.
+     */
+    protected abstract void parse(CharBuffer chars);
+
+    /**
+     * Called once all output has been parsed, to handle whatever is left.
+     */
+    protected abstract void endOfInput();
+
+    /**
+     * @return How many characters of the variable currently being read are
+     *         held, compared with the maximum variable size after every
+     *         {@link #parse}.
+     */
+    protected abstract int pendingLength();
+
+    protected final void put(String key, String value) {
+        variables.put(key, value);
+    }
+
+    /**
+     * Stops parsing; everything after this is discarded.
+     */
+    protected final void fail(IOException failure) {
+        Runnable onFailure;
+        synchronized (this) {
+            this.failure = failure;
+            onFailure = this.onFailure;
+        }
+        if (onFailure != null) {
+            onFailure.run();
+        }
+    }
+
+    protected final boolean hasFailed() {
+        return failure != null;
+    }
+
+    private void decode(ByteBuffer input, boolean endOfInput) {
+        while (true) {
+            CoderResult result = decoder.decode(input, chars, endOfInput);
+            drain();
+            if (!result.isOverflow()) {
+                return;
+            }
+        }
+    }
+
+    private void drain() {
+        chars.flip();
+        if (failure == null) {
+            parse(chars);
+            if (maxVariableSize > 0 && failure == null && pendingLength() > maxVariableSize) {
+                fail(new VariableTooLargeException(maxVariableSize));
+            }
+        }
+        chars.clear();
+    }
+}
@@ -0,0 +1,27 @@
+package com.lookout.jenkins.output;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a script writes more output than we are willing to parse.
+ *
+ * @see VariableTooLargeException
+ */
+public class OutputTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long maxOutputSize;
+
+    public OutputTooLargeException(long maxOutputSize) {
+        this("Script output exceeds the maximum of " + maxOutputSize + " bytes", maxOutputSize);
+    }
+
+    protected OutputTooLargeException(String message, long maxOutputSize) {
+        super(message);
+        this.maxOutputSize = maxOutputSize;
+    }
+
+    public long getMaxOutputSize() {
+        return maxOutputSize;
+    }
+}
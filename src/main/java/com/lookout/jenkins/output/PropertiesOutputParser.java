@@ -0,0 +1,235 @@
+package com.lookout.jenkins.output;
+
+import java.nio.CharBuffer;
+
+/**
+ * {@link OutputParser} following the syntax of
+ * {@link java.util.Properties#load(java.io.Reader)}.
+ *
+ * Only the logical line currently being read is kept in memory, so the output
+ * itself is never buffered.
+ */
+public class PropertiesOutputParser extends OutputParser {
+    private final StringBuilder line = new StringBuilder();
+    private final StringBuilder unescaped = new StringBuilder();
+
+    // Line reader state, mirroring java.util.Properties.LineReader.
+    private boolean skipWhiteSpace = true;
+    private boolean appendedLineBegin;
+    private boolean precedingBackslash;
+    private boolean skipLF;
+    private boolean commentLine;
+    private boolean lastWasCR;
+    private boolean continuedOnLastChar;
+    private long completedLines;
+    private long lineNumber;
+
+    /**
+     * @param maxOutputSize The maximum number of bytes to accept, or zero for no
+     *                      limit.
+     */
+    public PropertiesOutputParser(long maxOutputSize) {
+        super(maxOutputSize);
+    }
+
+    public PropertiesOutputParser() {
+        this(0);
+    }
+
+    @Override
+    protected void parse(CharBuffer chars) {
+        while (chars.hasRemaining() && !hasFailed()) {
+            accept(chars.get());
+        }
+    }
+
+    @Override
+    protected void endOfInput() {
+        // Like Properties, a dangling backslash at the end of input is dropped, and
+        // a line continued right before the end of input still counts as a line.
+        if (line.length() > 0 || continuedOnLastChar) {
+            if (precedingBackslash) {
+                line.setLength(line.length() - 1);
+            }
+            parseLine();
+        }
+    }
+
+    @Override
+    protected int pendingLength() {
+        return line.length();
+    }
+
+    private void accept(char c) {
+        if (c == '\n') {
+            if (!lastWasCR) {
+                completedLines++;
+            }
+        } else if (c == '\r') {
+            completedLines++;
+        }
+        lastWasCR = c == '\r';
+        continuedOnLastChar = false;
+
+        if (skipLF) {
+            skipLF = false;
+            if (c == '\n') {
+                return;
+            }
+        }
+
+        if (skipWhiteSpace) {
+            if (c == ' ' || c == '\t' || c == '\f') {
+                return;
+            }
+            if (!appendedLineBegin && (c == '\r' || c == '\n')) {
+                return;
+            }
+            skipWhiteSpace = false;
+            appendedLineBegin = false;
+        }
+
+        if (commentLine) {
+            if (c == '\r' || c == '\n') {
+                commentLine = false;
+                skipWhiteSpace = true;
+            }
+            return;
+        }
+
+        if (line.length() == 0 && (c == '#' || c == '!')) {
+            commentLine = true;
+            return;
+        }
+
+        if (c != '\n' && c != '\r') {
+            if (line.length() == 0) {
+                lineNumber = completedLines + 1;
+            }
+            line.append(c);
+            precedingBackslash = c == '\\' ? !precedingBackslash : false;
+            return;
+        }
+
+        // Reached the end of a physical line.
+        if (line.length() == 0) {
+            skipWhiteSpace = true;
+            return;
+        }
+
+        if (precedingBackslash) {
+            // A backslash at the end of the line continues the logical line on the
+            // next one, skipping its leading whitespace.
+            line.setLength(line.length() - 1);
+            skipWhiteSpace = true;
+            appendedLineBegin = true;
+            precedingBackslash = false;
+            if (c == '\r') {
+                skipLF = true;
+            }
+            continuedOnLastChar = true;
+            return;
+        }
+
+        parseLine();
+        skipWhiteSpace = true;
+        appendedLineBegin = false;
+    }
+
+    // Splits a logical line into key and value, see Properties.load0.
+    private void parseLine() {
+        int limit = line.length();
+        int keyLength = 0;
+        int valueStart = limit;
+        boolean hasSeparator = false;
+        boolean backslash = false;
+
+        while (keyLength < limit) {
+            char c = line.charAt(keyLength);
+            if ((c == '=' || c == ':') && !backslash) {
+                valueStart = keyLength + 1;
+                hasSeparator = true;
+                break;
+            } else if ((c == ' ' || c == '\t' || c == '\f') && !backslash) {
+                valueStart = keyLength + 1;
+                break;
+            }
+            backslash = c == '\\' ? !backslash : false;
+            keyLength++;
+        }
+
+        while (valueStart < limit) {
+            char c = line.charAt(valueStart);
+            if (c != ' ' && c != '\t' && c != '\f') {
+                if (!hasSeparator && (c == '=' || c == ':')) {
+                    hasSeparator = true;
+                } else {
+                    break;
+                }
+            }
+            valueStart++;
+        }
+
+        String key = unescape(0, keyLength);
+        String value = key == null ? null : unescape(valueStart, limit);
+        if (value != null) {
+            put(key, value);
+        }
+        line.setLength(0);
+    }
+
+    private String unescape(int start, int end) {
+        unescaped.setLength(0);
+        int i = start;
+        while (i < end) {
+            char c = line.charAt(i++);
+            if (c != '\\') {
+                unescaped.append(c);
+                continue;
+            }
+            if (i >= end) {
+                break;
+            }
+
+            c = line.charAt(i++);
+            if (c == 'u') {
+                if (i > end - 4) {
+                    fail(new OutputParseException("Malformed \\uxxxx encoding", lineNumber));
+                    return null;
+                }
+                int value = 0;
+                for (int digit = 0; digit < 4; digit++) {
+                    int hex = hexValue(line.charAt(i++));
+                    if (hex < 0) {
+                        fail(new OutputParseException("Malformed \\uxxxx encoding", lineNumber));
+                        return null;
+                    }
+                    value = (value << 4) + hex;
+                }
+                unescaped.append((char) value);
+            } else if (c == 't') {
+                unescaped.append('\t');
+            } else if (c == 'r') {
+                unescaped.append('\r');
+            } else if (c == 'n') {
+                unescaped.append('\n');
+            } else if (c == 'f') {
+                unescaped.append('\f');
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,14 @@
+package com.lookout.jenkins.output;
+
+/**
+ * Thrown when a single variable in the script output is longer than we are
+ * willing to hold in memory while it is being read.
+ */
+public class VariableTooLargeException extends OutputTooLargeException {
+    private static final long serialVersionUID = 1L;
+
+    public VariableTooLargeException(long maxVariableSize) {
+        super("A variable in the script output exceeds the maximum of " + maxVariableSize + " characters",
+                maxVariableSize);
+    }
+}
@@ -36,6 +36,11 @@ public class EnvironmentScriptMatrixTest {
         public TaskListener listener;
 
         public MatrixTestJob(String script, boolean onlyRunOnParent) throws Exception {
+            this(new EnvironmentScript(script, defaultScriptType(), onlyRunOnParent, Boolean.TRUE),
+                    new AxisList(new Axis("axis", "value1", "value2")));
+        }
+
+        public MatrixTestJob(EnvironmentScript wrapper, AxisList axes) throws Exception {
             listener = new StreamTaskListener(System.err, Charset.defaultCharset());
             project = jenkins.createProject(MatrixProject.class);
 
@@ -43,14 +48,8 @@ public class EnvironmentScriptMatrixTest {
             // race conditions when concurrently updating the 'counter' file.
             project.setExecutionStrategy(new DefaultMatrixExecutionStrategyImpl(true, null, null, null));
 
-            String scriptType = UNIX_SCRIPT;
-            if (Functions.isWindows()) {
-                scriptType = BATCH_SCRIPT;
-            }
-
-            project.setAxes(new AxisList(new Axis("axis", "value1", "value2")));
-            project.getBuildWrappersList()
-                    .add(new EnvironmentScript(script, scriptType, onlyRunOnParent, hideGeneratedValue));
+            project.setAxes(axes);
+            project.getBuildWrappersList().add(wrapper);
             countBuilder = new CountBuilder();
             project.getBuildersList().add(countBuilder);
             build = jenkins.buildAndAssertSuccess(project);
@@ -86,7 +85,10 @@ public class EnvironmentScriptMatrixTest {
     String script;
     final static String UNIX_SCRIPT = "unixScript";
     final static String BATCH_SCRIPT = "batchScript";
-    boolean hideGeneratedValue = Boolean.TRUE;
+
+    static String defaultScriptType() {
+        return Functions.isWindows() ? BATCH_SCRIPT : UNIX_SCRIPT;
+    }
 
     @Before
     public void setUp() throws IOException {
@@ -113,6 +115,17 @@ public class EnvironmentScriptMatrixTest {
             assertFalse(run.getWorkspace().child("was_run").exists());
     }
 
+    @Test
+    public void testPersistedEnvironmentSurvivesRestart() throws Exception {
+        MatrixTestJob job = new MatrixTestJob(script, true);
+        assertEquals("yes", job.build.getAction(PersistedEnvironment.class).getSnapshot().getEnvAdditions().get("seen"));
+
+        jenkins.jenkins.reload();
+        MatrixProject project = jenkins.jenkins.getItemByFullName(job.project.getFullName(), MatrixProject.class);
+        PersistedEnvironment persisted = project.getLastBuild().getAction(PersistedEnvironment.class);
+        assertEquals("yes", persisted.getSnapshot().getEnvAdditions().get("seen"));
+    }
+
     @Test
     public void testWithEachChild() throws Exception {
         MatrixTestJob job = new MatrixTestJob(script, false);
@@ -127,6 +140,37 @@ public class EnvironmentScriptMatrixTest {
             assertTrue(run.getWorkspace().child("was_run").exists());
     }
 
+    @Test
+    public void testSharedPerNode() throws Exception {
+        EnvironmentScript wrapper = new EnvironmentScript(script, defaultScriptType(), false, true);
+        wrapper.setSharedBy(SharedEnvironment.SHARE_NODE);
+        MatrixTestJob job = new MatrixTestJob(wrapper, new AxisList(new Axis("axis", "value1", "value2")));
+
+        // Both runs are on the built-in node, so only the first one ran it.
+        assertEquals("1", new FilePath(tempDir).child("counter").readToString().trim());
+        for (MatrixRun run : job.build.getRuns()) {
+            assertEquals("yes", run.getEnvironment(job.listener).get("seen"));
+        }
+        assertEquals(1, job.build.getAction(SharedEnvironment.class).getSnapshots().size());
+    }
+
+    @Test
+    public void testSharedPerAxes() throws Exception {
+        EnvironmentScript wrapper = new EnvironmentScript(script, defaultScriptType(), false, true);
+        wrapper.setSharedBy(SharedEnvironment.SHARE_AXES);
+        wrapper.setSharedAxes("axis");
+        MatrixTestJob job = new MatrixTestJob(wrapper,
+                new AxisList(new Axis("axis", "value1", "value2"), new Axis("other", "a", "b", "c")));
+
+        // Once for each value of "axis", whatever the value of "other".
+        assertEquals("2", new FilePath(tempDir).child("counter").readToString().trim());
+        assertEquals(6, job.countBuilder.getCount());
+        for (MatrixRun run : job.build.getRuns()) {
+            assertEquals("yes", run.getEnvironment(job.listener).get("seen"));
+        }
+        assertTrue(job.build.getAction(SharedEnvironment.class).getSnapshots().containsKey("axis=value1"));
+    }
+
     private void buildAndAssert(MatrixTestJob job) throws Exception {
         assertEquals(Result.SUCCESS, job.build.getResult());
 
@@ -0,0 +1,84 @@
+package com.lookout.jenkins;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.lookout.jenkins.commands.Commands;
+
+public class EnvironmentScriptStepTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void testVariablesInsideBlock() throws Exception {
+        String script = Functions.isWindows()
+                ? "@echo var1=one\r\n@echo PATH+extra=/extra"
+                : "echo var1=one\necho PATH+extra=/extra";
+        WorkflowJob job = jenkins.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("node {\n"
+                + "  withEnvironmentScript(script: '" + script.replace("\r", "\\r").replace("\n", "\\n") + "') {\n"
+                + "    echo \"inside=${env.var1}\"\n"
+                + "    echo \"path=${env.PATH}\"\n"
+                + "  }\n"
+                + "  echo \"outside=${env.var1}\"\n"
+                + "}", true));
+        WorkflowRun run = jenkins.buildAndAssertSuccess(job);
+
+        jenkins.assertLogContains("inside=one", run);
+        jenkins.assertLogContains("path=/extra" + File.pathSeparatorChar, run);
+        jenkins.assertLogContains("outside=null", run);
+        assertNotNull(run.getAction(ScriptTimingsAction.class));
+    }
+
+    @Test
+    public void testFailingScript() throws Exception {
+        WorkflowJob job = jenkins.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("node {\n"
+                + "  withEnvironmentScript(script: 'exit 3') {\n"
+                + "    echo 'body ran'\n"
+                + "  }\n"
+                + "}", true));
+        WorkflowRun run = jenkins.buildAndAssertStatus(Result.FAILURE, job);
+
+        jenkins.assertLogContains("Unable to generate environment variables from script", run);
+        jenkins.assertLogNotContains("body ran", run);
+    }
+
+    @Test
+    public void testCachedScriptFileSurvivesReconnect() throws Exception {
+        if (Functions.isWindows()) {
+            return;
+        }
+        // Not only echoes, so the script is written to the node.
+        String script = "set -e\necho var1=one";
+        WorkflowJob job = jenkins.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("node {\n"
+                + "  withEnvironmentScript(script: '" + script.replace("\n", "\\n") + "',"
+                + " scriptDelivery: 'cachedFile') {\n"
+                + "    echo \"inside=${env.var1}\"\n"
+                + "  }\n"
+                + "}", true));
+        jenkins.assertLogContains("inside=one", jenkins.buildAndAssertSuccess(job));
+
+        FilePath cached = ScriptFileCache.getDirectory(jenkins.jenkins)
+                .child(ScriptFileCache.getFileName(script, Commands.UNIX_SCRIPT));
+        assertTrue(cached.exists());
+        // No freestyle job refers to it, but it was used recently.
+        new ScriptFileCache.CleanupListener().onOnline(jenkins.jenkins.toComputer(), TaskListener.NULL);
+        assertTrue(cached.exists());
+    }
+}
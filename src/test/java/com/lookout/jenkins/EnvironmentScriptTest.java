@@ -4,14 +4,19 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
 
 import hudson.EnvVars;
+import hudson.FilePath;
 import hudson.Functions;
 import hudson.model.FreeStyleBuild;
 import hudson.model.TaskListener;
 import hudson.model.FreeStyleProject;
+import hudson.model.Node;
 import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.tasks.Shell;
 import hudson.util.StreamTaskListener;
 
 import org.junit.Rule;
@@ -19,6 +24,9 @@ import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.SingleFileSCM;
 
+import com.lookout.jenkins.commands.Commands;
+import com.lookout.jenkins.output.OutputParser;
+
 public class EnvironmentScriptTest {
 
     @Rule
@@ -30,14 +38,34 @@ public class EnvironmentScriptTest {
         public TaskListener listener;
 
         public TestJob(String script, String scriptType, boolean hideEnvironmentVariablesValues) throws Exception {
+            this(new EnvironmentScript(script, scriptType, false, hideEnvironmentVariablesValues));
+        }
+
+        public TestJob(EnvironmentScript wrapper) throws Exception {
+            this(wrapper, null);
+        }
+
+        public TestJob(EnvironmentScript wrapper, Node node) throws Exception {
             listener = new StreamTaskListener(System.err, Charset.defaultCharset());
             project = jenkins.createFreeStyleProject();
-            project.getBuildWrappersList()
-                    .add(new EnvironmentScript(script, scriptType, false, hideEnvironmentVariablesValues));
+            if (node != null) {
+                project.setAssignedNode(node);
+            }
+            project.getBuildWrappersList().add(wrapper);
             project.setScm(new SingleFileSCM("envs", "foo_var=bar"));
             build = jenkins.buildAndAssertSuccess(project);
             jenkins.waitUntilNoActivity();
         }
+
+        public FreeStyleBuild rebuild() throws Exception {
+            build = jenkins.buildAndAssertSuccess(project);
+            jenkins.waitUntilNoActivity();
+            return build;
+        }
+    }
+
+    static String defaultScriptType() {
+        return Functions.isWindows() ? BATCH_SCRIPT : UNIX_SCRIPT;
     }
 
     final static String UNIX_SCRIPT = "unixScript";
@@ -212,4 +240,560 @@ public class EnvironmentScriptTest {
         assertTrue(logs.contains(new String("[environment-script] Adding variable 'var2' with value 'two'")));
         assertTrue(logs.contains(new String("[environment-script] Adding variable 'var3' with value 'three'")));
     }
+
+    @Test
+    public void testCachedResults() throws Exception {
+        String script = "echo 1 >> runs\necho cached=yes";
+        if (Functions.isWindows()) {
+            script = "echo 1 >> runs\r\necho cached=yes";
+        }
+        EnvironmentScript wrapper = new EnvironmentScript(script, defaultScriptType(), false, true);
+        wrapper.setCacheResults(true);
+        wrapper.setCacheTtl(0);
+        TestJob job = new TestJob(wrapper);
+        job.rebuild();
+
+        // The second build must reuse the first build's output without running the script.
+        assertEquals(1, job.build.getWorkspace().child("runs").readToString().trim().split("\\s+").length);
+        assertEquals("yes", job.build.getEnvironment(job.listener).get("cached"));
+        assertTrue(job.build.getLog(10).stream().anyMatch(line -> line.contains("Cache hit")));
+    }
+
+    @Test
+    public void testWatchedFiles() throws Exception {
+        String script = "echo 1 >> runs\necho watched=yes";
+        if (Functions.isWindows()) {
+            script = "echo 1 >> runs\r\necho watched=yes";
+        }
+        EnvironmentScript wrapper = new EnvironmentScript(script, defaultScriptType(), false, true);
+        wrapper.setWatchedFiles("envs, missing/*.properties");
+        TestJob job = new TestJob(wrapper);
+        job.rebuild();
+
+        // The checked out file is the same, so the second build reuses the first's environment.
+        assertEquals(1, job.build.getWorkspace().child("runs").readToString().trim().split("\\s+").length);
+        assertEquals("yes", job.build.getEnvironment(job.listener).get("watched"));
+        jenkins.assertLogContains("Hashed 1 watched files", job.build);
+        jenkins.assertLogContains("Watched files unchanged since", job.build);
+
+        job.project.setScm(new SingleFileSCM("envs", "foo_var=baz"));
+        job.rebuild();
+        assertEquals(2, job.build.getWorkspace().child("runs").readToString().trim().split("\\s+").length);
+        jenkins.assertLogContains("Watched files changed since", job.build);
+
+        // Only the digest is stored with the build, its environment is read back
+        // from the variables it injected.
+        jenkins.jenkins.reload();
+        job.project = jenkins.jenkins.getItemByFullName(job.project.getFullName(), FreeStyleProject.class);
+        job.rebuild();
+        assertEquals(2, job.build.getWorkspace().child("runs").readToString().trim().split("\\s+").length);
+        jenkins.assertLogContains("Watched files unchanged since", job.build);
+        assertEquals("yes", job.build.getEnvironment(job.listener).get("watched"));
+    }
+
+    @Test
+    public void testParseOnAgent() throws Exception {
+        String script = SCRIPT_OVERRIDDEN_VARIABLES_UNIX;
+        if (Functions.isWindows()) {
+            script = SCRIPT_OVERRIDDEN_VARIABLES_BATCH;
+        }
+        EnvironmentScript wrapper = new EnvironmentScript(script, defaultScriptType(), false, true);
+        wrapper.setParseOnAgent(true);
+        TestJob job = new TestJob(wrapper, jenkins.createOnlineSlave());
+
+        EnvVars vars = job.build.getEnvironment(job.listener);
+        assertEquals("not one" + File.pathSeparatorChar + "one", vars.get("var1"));
+        assertEquals("two", vars.get("var2"));
+    }
+
+    @Test
+    public void testCachedScriptFile() throws Exception {
+        EnvironmentScript wrapper = new EnvironmentScript(SCRIPT_SIMPLE_VARIABLES, defaultScriptType(), false, true);
+        wrapper.setScriptDelivery(Commands.DELIVERY_CACHED_FILE);
+        // The script only echoes, which would not need a file at all.
+        wrapper.setAlwaysLaunchScript(true);
+        TestJob job = new TestJob(wrapper);
+        job.rebuild();
+
+        assertEquals("two", job.build.getEnvironment(job.listener).get("var2"));
+        // The script is kept for the next build, under a name derived from its content.
+        FilePath cached = ScriptFileCache.getDirectory(jenkins.jenkins)
+                .child(ScriptFileCache.getFileName(SCRIPT_SIMPLE_VARIABLES, defaultScriptType()));
+        assertTrue(cached.exists());
+    }
+
+    @Test
+    public void testScriptOnStandardInput() throws Exception {
+        EnvironmentScript wrapper = new EnvironmentScript(SCRIPT_SIMPLE_VARIABLES, defaultScriptType(), false, true);
+        wrapper.setScriptDelivery(Commands.DELIVERY_STDIN);
+        wrapper.setAlwaysLaunchScript(true);
+        TestJob job = new TestJob(wrapper);
+
+        EnvVars vars = job.build.getEnvironment(job.listener);
+        assertEquals("one", vars.get("var1"));
+        assertEquals("three", vars.get("var3"));
+    }
+
+    @Test
+    public void testVariablesSurviveRestart() throws Exception {
+        String scriptType = UNIX_SCRIPT;
+        String script = SCRIPT_OVERRIDDEN_VARIABLES_UNIX
+                + "\nfor i in $(seq 1 200); do echo big$i=0123456789012345678901234567890123456789; done";
+        if (Functions.isWindows()) {
+            scriptType = BATCH_SCRIPT;
+            script = SCRIPT_OVERRIDDEN_VARIABLES_BATCH
+                    + "\r\nfor /l %%i in (1,1,200) do @echo big%%i=0123456789012345678901234567890123456789";
+        }
+        TestJob job = new TestJob(script, scriptType, true);
+        // That's too much for build.xml, so it has to go in the sidecar file.
+        assertTrue(new File(job.build.getRootDir(), EnvironmentPluginAction.SIDECAR_FILE).exists());
+
+        jenkins.jenkins.reload();
+        FreeStyleProject project = jenkins.jenkins.getItemByFullName(job.project.getFullName(),
+                FreeStyleProject.class);
+        EnvVars vars = project.getLastBuild().getEnvironment(job.listener);
+        assertEquals("not one" + File.pathSeparatorChar + "one", vars.get("var1"));
+        assertEquals("0123456789012345678901234567890123456789", vars.get("big200"));
+    }
+
+    @Test
+    public void testUnreadableSidecarIsReadAgain() throws Exception {
+        if (Functions.isWindows()) {
+            return;
+        }
+        TestJob job = new TestJob("for i in $(seq 1 200); do echo big$i=0123456789012345678901234567890123456789;"
+                + " done", UNIX_SCRIPT, true);
+        jenkins.jenkins.reload();
+        FreeStyleProject project = jenkins.jenkins.getItemByFullName(job.project.getFullName(),
+                FreeStyleProject.class);
+        FreeStyleBuild build = project.getLastBuild();
+        File sidecar = new File(build.getRootDir(), EnvironmentPluginAction.SIDECAR_FILE);
+        File moved = new File(build.getRootDir(), "moved.properties");
+        assertTrue(sidecar.renameTo(moved));
+
+        EnvironmentPluginAction action = build.getAction(EnvironmentPluginAction.class);
+        assertEquals(0, action.getSnapshot().size());
+        // Once the file is back, the variables are too.
+        assertTrue(moved.renameTo(sidecar));
+        assertEquals("0123456789012345678901234567890123456789", action.getEnvAdditions().get("big200"));
+        assertEquals("0123456789012345678901234567890123456789", build.getEnvironment(job.listener).get("big1"));
+    }
+
+    @Test
+    public void testTimings() throws Exception {
+        EnvironmentScript wrapper = new EnvironmentScript(SCRIPT_SIMPLE_VARIABLES, defaultScriptType(), false, true);
+        // Launching is one of the phases.
+        wrapper.setAlwaysLaunchScript(true);
+        TestJob job = new TestJob(wrapper);
+
+        ScriptTimings timings = job.build.getAction(ScriptTimingsAction.class).getTimings();
+        assertNull(timings.getFailure());
+        assertTrue(timings.getPhases().containsKey(ScriptTimings.SCRIPT_FILE));
+        assertTrue(timings.getPhases().containsKey(ScriptTimings.LAUNCH));
+        assertTrue(timings.getPhases().containsKey(ScriptTimings.EXECUTION));
+        assertTrue(timings.getPhases().containsKey(ScriptTimings.PARSING));
+        assertTrue(timings.getPhases().containsKey(ScriptTimings.PUBLISHING));
+        assertTrue(timings.getOutputBytes() > 0);
+
+        FreeStyleProject failing = jenkins.createFreeStyleProject();
+        failing.getBuildWrappersList().add(new EnvironmentScript("exit 3", defaultScriptType(), false, false));
+        jenkins.buildAndAssertStatus(Result.FAILURE, failing);
+
+        String metrics = jenkins.createWebClient()
+                .goTo(EnvironmentScriptMetrics.URL_NAME + "/", "text/plain").getWebResponse().getContentAsString();
+        assertTrue(metrics.contains("environment_script_duration_seconds_count{job=\""
+                + job.project.getFullName() + "\"} 1"));
+        assertTrue(metrics.contains("environment_script_phase_duration_seconds_count{job=\""
+                + job.project.getFullName() + "\",phase=\"publishing\"} 1"));
+        assertTrue(metrics.contains("environment_script_failures_total{type=\"exit-code\"} 1"));
+        assertTrue(metrics.contains("environment_script_output_bytes_total{job=\"" + job.project.getFullName()
+                + "\"} " + timings.getOutputBytes()));
+    }
+
+    @Test
+    public void testTimeoutFallsBackToLastEnvironment() throws Exception {
+        String script = "if [ -f hang ]; then sleep 60; fi\necho var1=one";
+        if (Functions.isWindows()) {
+            script = "@if exist hang ping -n 60 127.0.0.1 > nul\r\n@echo var1=one";
+        }
+        EnvironmentScript wrapper = new EnvironmentScript(script, defaultScriptType(), false, false);
+        wrapper.setTimeout(1);
+        wrapper.setFallbackPolicy(EnvironmentScript.FALLBACK_LAST_ENVIRONMENT);
+        TestJob job = new TestJob(wrapper);
+
+        // From now on the script hangs.
+        job.build.getWorkspace().child("hang").touch(0);
+        FreeStyleBuild build = job.rebuild();
+        jenkins.assertLogContains("did not finish within 1 seconds", build);
+        assertEquals("one", build.getEnvironment(job.listener).get("var1"));
+        assertEquals(ScriptTimings.FAILURE_TIMEOUT,
+                build.getAction(ScriptTimingsAction.class).getTimings().getFailure());
+
+        wrapper.setFallbackPolicy(EnvironmentScript.FALLBACK_FAIL);
+        jenkins.buildAndAssertStatus(Result.FAILURE, job.project);
+    }
+
+    @Test
+    public void testFragments() throws Exception {
+        String scriptType = defaultScriptType();
+        EnvironmentScript wrapper = new EnvironmentScript("echo var1=one\necho shared=main", scriptType, false,
+                false);
+        wrapper.setFragments(Arrays.asList(
+                new ScriptFragment("echo var2=two\necho shared=first", scriptType),
+                new ScriptFragment("echo shared=second", scriptType)));
+        TestJob job = new TestJob(wrapper);
+
+        EnvVars vars = job.build.getEnvironment(job.listener);
+        assertEquals("one", vars.get("var1"));
+        assertEquals("two", vars.get("var2"));
+        assertEquals("second", vars.get("shared"));
+
+        wrapper.setConflictPolicy(EnvironmentScript.CONFLICT_FIRST_WINS);
+        assertEquals("main", job.rebuild().getEnvironment(job.listener).get("shared"));
+
+        wrapper.setConflictPolicy(EnvironmentScript.CONFLICT_FAIL);
+        FreeStyleBuild build = jenkins.buildAndAssertStatus(Result.FAILURE, job.project);
+        jenkins.assertLogContains("Variable shared is set by more than one script", build);
+    }
+
+    @Test
+    public void testFailingFragmentStopsOthers() throws Exception {
+        if (Functions.isWindows()) {
+            return;
+        }
+        EnvironmentScript wrapper = new EnvironmentScript("sleep 60\necho slow=yes", UNIX_SCRIPT, false, false);
+        wrapper.setFragments(Arrays.asList(new ScriptFragment("exit 4", UNIX_SCRIPT)));
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildWrappersList().add(wrapper);
+
+        long start = System.currentTimeMillis();
+        FreeStyleBuild build = jenkins.buildAndAssertStatus(Result.FAILURE, project);
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        jenkins.assertLogContains(Messages.EnvironmentScriptWrapper_UnableToExecuteScript(4), build);
+    }
+
+    @Test
+    public void testOutputFormats() throws Exception {
+        String script = "echo '{\"path\": \"C:\\\\tools\", \"count\": 3}'";
+        if (Functions.isWindows()) {
+            script = "@echo off\r\necho {\"path\": \"C:\\\\tools\", \"count\": 3}";
+        }
+        EnvironmentScript wrapper = new EnvironmentScript(script, defaultScriptType(), false, false);
+        wrapper.setOutputFormat(OutputParser.FORMAT_JSON);
+        TestJob job = new TestJob(wrapper);
+
+        EnvVars vars = job.build.getEnvironment(job.listener);
+        assertEquals("C:\\tools", vars.get("path"));
+        assertEquals("3", vars.get("count"));
+
+        if (!Functions.isWindows()) {
+            wrapper = new EnvironmentScript("printf 'path=C:\\\\tools\\0cert=a\\nb\\0'", UNIX_SCRIPT, false, false);
+            wrapper.setOutputFormat(OutputParser.FORMAT_NUL);
+            job = new TestJob(wrapper);
+
+            vars = job.build.getEnvironment(job.listener);
+            assertEquals("C:\\tools", vars.get("path"));
+            assertEquals("a\nb", vars.get("cert"));
+        }
+    }
+
+    @Test
+    public void testInjectChangedOnly() throws Exception {
+        String script = "echo JOB_NAME=$JOB_NAME\necho var1=one\necho PATH+TOOL=/opt/tool";
+        if (Functions.isWindows()) {
+            script = "@echo off\r\necho JOB_NAME=%JOB_NAME%\r\necho var1=one\r\necho PATH+TOOL=C:\\tool";
+        }
+        EnvironmentScript wrapper = new EnvironmentScript(script, defaultScriptType(), false, false);
+        wrapper.setInjectChangedOnly(true);
+        TestJob job = new TestJob(wrapper);
+
+        EnvironmentPluginAction action = job.build.getAction(EnvironmentPluginAction.class);
+        assertFalse(action.getEnvAdditions().containsKey("JOB_NAME"));
+        assertEquals("one", action.getEnvAdditions().get("var1"));
+        assertEquals(1, action.getEnvOverrides().size());
+        assertEquals(job.project.getName(), job.build.getEnvironment(job.listener).get("JOB_NAME"));
+        jenkins.assertLogContains("Skipping 1 variables the script did not change", job.build);
+    }
+
+    @Test
+    public void testRetriesRetryableExitCodes() throws Exception {
+        if (Functions.isWindows()) {
+            return;
+        }
+        // Unavailable the first two times.
+        EnvironmentScript wrapper = new EnvironmentScript("echo 1 >> runs\n"
+                + "if [ $(wc -l < runs) -lt 3 ]; then exit 75; fi\n"
+                + "echo retried=yes", UNIX_SCRIPT, false, false);
+        wrapper.setMaxAttempts(3);
+        // Same as the form shows when nothing was configured.
+        assertEquals(5, wrapper.getRetryDelay());
+        wrapper.setRetryDelay(0);
+        wrapper.setRetryExitCodes("69, 75");
+        TestJob job = new TestJob(wrapper);
+
+        assertEquals("yes", job.build.getEnvironment(job.listener).get("retried"));
+        assertEquals(3, job.build.getWorkspace().child("runs").readToString().trim().split("\\s+").length);
+        jenkins.assertLogContains("The script exited with code 75, retrying", job.build);
+
+        // Other exit codes fail the build right away.
+        EnvironmentScript failing = new EnvironmentScript("echo 1 >> failures\nexit 1", UNIX_SCRIPT, false, false);
+        failing.setMaxAttempts(3);
+        failing.setRetryDelay(0);
+        failing.setRetryExitCodes("75");
+        job.project.getBuildWrappersList().replace(failing);
+        jenkins.buildAndAssertStatus(Result.FAILURE, job.project);
+        assertEquals(1, job.project.getSomeWorkspace().child("failures").readToString().trim().split("\\s+").length);
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        EnvironmentScript.EnvironmentScriptDescriptor descriptor = jenkins.jenkins
+                .getDescriptorByType(EnvironmentScript.EnvironmentScriptDescriptor.class);
+        descriptor.setCircuitBreakerThreshold(2);
+        descriptor.setCircuitBreakerCooldown(3600);
+        ScriptCircuitBreaker.get().clear();
+        try {
+            String script = Functions.isWindows() ? "echo 1 >> runs\r\nexit 1" : "echo 1 >> runs\nexit 1";
+            FreeStyleProject project = jenkins.createFreeStyleProject();
+            project.getBuildWrappersList().add(new EnvironmentScript(script, defaultScriptType(), false, false));
+            jenkins.buildAndAssertStatus(Result.FAILURE, project);
+            FreeStyleBuild opening = jenkins.buildAndAssertStatus(Result.FAILURE, project);
+            jenkins.assertLogContains("opening its circuit breaker", opening);
+
+            // Every job running the same script fails fast now.
+            FreeStyleProject other = jenkins.createFreeStyleProject();
+            other.getBuildWrappersList().add(new EnvironmentScript(script, defaultScriptType(), false, false));
+            FreeStyleBuild open = jenkins.buildAndAssertStatus(Result.FAILURE, other);
+            jenkins.assertLogContains("not running it while its circuit breaker is open", open);
+            assertFalse(other.getSomeWorkspace().child("runs").exists());
+            assertEquals(ScriptTimings.FAILURE_CIRCUIT_OPEN,
+                    open.getAction(ScriptTimingsAction.class).getTimings().getFailure());
+        } finally {
+            ScriptCircuitBreaker.get().clear();
+        }
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        EnvironmentScript.EnvironmentScriptDescriptor descriptor = jenkins.jenkins
+                .getDescriptorByType(EnvironmentScript.EnvironmentScriptDescriptor.class);
+        descriptor.setMaxConcurrentScripts(1);
+        EnvironmentScript wrapper = new EnvironmentScript(SCRIPT_SIMPLE_VARIABLES, defaultScriptType(), false, false);
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildWrappersList().add(wrapper);
+
+        // Take the only slot, like the script of another build would.
+        String key = "the controller";
+        ScriptThrottle.Slot slot = ScriptThrottle.get().acquire(key, 1);
+        QueueTaskFuture<FreeStyleBuild> future = project.scheduleBuild2(0);
+        FreeStyleBuild build = future.waitForStart();
+        while (ScriptThrottle.get().getQueueLength(key) == 0) {
+            Thread.sleep(100);
+        }
+        slot.close();
+
+        jenkins.assertBuildStatusSuccess(future);
+        jenkins.assertLogContains("Waiting for one of the 1 script slots for the controller", build);
+        assertTrue(build.getAction(ScriptTimingsAction.class).getTimings().getPhases()
+                .containsKey(ScriptTimings.QUEUED));
+
+        descriptor.setConcurrencyScope(ScriptThrottle.SCOPE_GROUP);
+        assertNull(wrapper.getThrottleKey(project, null));
+        wrapper.setConcurrencyGroup("metadata");
+        assertEquals("group metadata", wrapper.getThrottleKey(project, null));
+    }
+
+    @Test
+    public void testSpeculative() throws Exception {
+        String script = "echo 1 >> runs\necho speculative=yes";
+        if (Functions.isWindows()) {
+            script = "echo 1 >> runs\r\necho speculative=yes";
+        }
+        EnvironmentScript wrapper = new EnvironmentScript(script, defaultScriptType(), false, false);
+        wrapper.setSpeculative(true);
+        TestJob job = new TestJob(wrapper);
+
+        // The quiet period gives the script time to run while the build is queued.
+        FreeStyleBuild build = jenkins.assertBuildStatusSuccess(job.project.scheduleBuild2(2));
+        jenkins.assertLogContains("Using the result of the script run while the build was queued", build);
+        assertEquals("yes", build.getEnvironment(job.listener).get("speculative"));
+        assertEquals(2, build.getWorkspace().child("runs").readToString().trim().split("\\s+").length);
+
+        // The number the build will get is known while it is queued.
+        script = Functions.isWindows() ? "echo number=%BUILD_NUMBER%" : "echo number=$BUILD_NUMBER";
+        EnvironmentScript numbered = new EnvironmentScript(script, defaultScriptType(), false, false);
+        numbered.setSpeculative(true);
+        job.project.getBuildWrappersList().replace(numbered);
+        build = jenkins.assertBuildStatusSuccess(job.project.scheduleBuild2(2));
+        jenkins.assertLogContains("Using the result of the script run while the build was queued", build);
+        assertEquals(String.valueOf(build.getNumber()), build.getEnvironment(job.listener).get("number"));
+
+        // Only known once the build started, so it never matches.
+        script = Functions.isWindows() ? "echo executor=%EXECUTOR_NUMBER%" : "echo executor=$EXECUTOR_NUMBER";
+        EnvironmentScript executor = new EnvironmentScript(script, defaultScriptType(), false, false);
+        executor.setSpeculative(true);
+        job.project.getBuildWrappersList().replace(executor);
+        build = jenkins.assertBuildStatusSuccess(job.project.scheduleBuild2(2));
+        jenkins.assertLogContains("used other values of EXECUTOR_NUMBER, running it again", build);
+        assertEquals(build.getEnvironment(job.listener).get("EXECUTOR_NUMBER"),
+                build.getEnvironment(job.listener).get("executor"));
+
+        // Still running when the build starts, so the checkout waits for it.
+        script = Functions.isWindows() ? "ping -n 6 127.0.0.1 > nul\r\necho slow=yes" : "sleep 5\necho slow=yes";
+        EnvironmentScript slow = new EnvironmentScript(script, defaultScriptType(), false, false);
+        slow.setSpeculative(true);
+        job.project.getBuildWrappersList().replace(slow);
+        build = jenkins.assertBuildStatusSuccess(job.project.scheduleBuild2(2));
+        jenkins.assertLogContains("Waiting for the script run while the build was queued to stop before the checkout",
+                build);
+        jenkins.assertLogContains("Using the result of the script run while the build was queued", build);
+        assertEquals("yes", build.getEnvironment(job.listener).get("slow"));
+    }
+
+    @Test
+    public void testMissingInterpreter() throws Exception {
+        if (Functions.isWindows()) {
+            return;
+        }
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildWrappersList().add(new EnvironmentScript("#!/no/such/interpreter -x\necho a=b",
+                UNIX_SCRIPT, false, false));
+
+        FreeStyleBuild build = jenkins.buildAndAssertStatus(Result.FAILURE, project);
+        jenkins.assertLogContains("The interpreter /no/such/interpreter does not exist on the controller", build);
+        assertEquals(ScriptTimings.FAILURE_INTERPRETER,
+                build.getAction(ScriptTimingsAction.class).getTimings().getFailure());
+    }
+
+    @Test
+    public void testWarmInterpreter() throws Exception {
+        if (Functions.isWindows()) {
+            return;
+        }
+        // Inside the subshell, $$ is the interpreter that was kept running.
+        EnvironmentScript wrapper = new EnvironmentScript("echo daemon=$$\n"
+                + "echo seen=${LEAK:-none}\n"
+                + "export LEAK=yes\n"
+                + "echo home=$(pwd)", UNIX_SCRIPT, false, false);
+        wrapper.setWarmInterpreter(true);
+
+        // The daemon needs bash, which the default shell need not be.
+        TestJob job = new TestJob(wrapper);
+        jenkins.assertLogContains("which a warm interpreter needs, starting the script as usual", job.build);
+
+        jenkins.jenkins.getDescriptorByType(Shell.DescriptorImpl.class).setShell("/bin/bash");
+        job.rebuild();
+        jenkins.assertLogNotContains("which a warm interpreter needs", job.build);
+        EnvVars first = job.build.getEnvironment(job.listener);
+        EnvVars second = job.rebuild().getEnvironment(job.listener);
+
+        assertEquals(first.get("daemon"), second.get("daemon"));
+        assertEquals("none", second.get("seen"));
+        assertEquals(job.build.getWorkspace().getRemote(), second.get("home"));
+
+        // A script that times out takes its interpreter down with it.
+        EnvironmentScript sleeping = new EnvironmentScript("sleep 60", UNIX_SCRIPT, false, false);
+        sleeping.setWarmInterpreter(true);
+        sleeping.setTimeout(1);
+        job.project.getBuildWrappersList().replace(sleeping);
+        jenkins.buildAndAssertStatus(Result.FAILURE, job.project);
+        job.project.getBuildWrappersList().replace(wrapper);
+        assertNotEquals(first.get("daemon"), job.rebuild().getEnvironment(job.listener).get("daemon"));
+    }
+
+    @Test
+    public void testWarmInterpreterOutputLimit() throws Exception {
+        if (Functions.isWindows()) {
+            return;
+        }
+        EnvironmentScript.EnvironmentScriptDescriptor descriptor = jenkins.jenkins
+                .getDescriptorByType(EnvironmentScript.EnvironmentScriptDescriptor.class);
+        descriptor.setMaxOutputSize(4096);
+        jenkins.jenkins.getDescriptorByType(Shell.DescriptorImpl.class).setShell("/bin/bash");
+        EnvironmentScript wrapper = new EnvironmentScript("while true; do echo FOO=bar; done", UNIX_SCRIPT, false,
+                false);
+        wrapper.setWarmInterpreter(true);
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildWrappersList().add(wrapper);
+
+        // Killed as soon as it printed too much, not when it runs out of disk.
+        long start = System.currentTimeMillis();
+        FreeStyleBuild build = jenkins.buildAndAssertStatus(Result.FAILURE, project);
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        assertEquals(ScriptTimings.FAILURE_OUTPUT_TOO_LARGE,
+                build.getAction(ScriptTimingsAction.class).getTimings().getFailure());
+    }
+
+    @Test
+    public void testWarmPowerShellMatchesLaunchedScript() throws Exception {
+        if (!Functions.isWindows()) {
+            return;
+        }
+        String script = "Write-Host host=yes\r\n"
+                + "Write-Output output=yes\r\n"
+                + "exit 3";
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildWrappersList().add(new EnvironmentScript(script, Commands.POWER_SHELL, false, false));
+        FreeStyleBuild launched = jenkins.buildAndAssertStatus(Result.FAILURE, project);
+
+        EnvironmentScript wrapper = new EnvironmentScript(script, Commands.POWER_SHELL, false, false);
+        wrapper.setWarmInterpreter(true);
+        project.getBuildWrappersList().replace(wrapper);
+        FreeStyleBuild warm = jenkins.buildAndAssertStatus(Result.FAILURE, project);
+        assertEquals(ScriptTimings.FAILURE_EXIT_CODE,
+                launched.getAction(ScriptTimingsAction.class).getTimings().getFailure());
+        assertEquals(ScriptTimings.FAILURE_EXIT_CODE,
+                warm.getAction(ScriptTimingsAction.class).getTimings().getFailure());
+
+        // Without the exit, both print the same variables.
+        script = script.substring(0, script.lastIndexOf("\r\n"));
+        project.getBuildWrappersList().replace(new EnvironmentScript(script, Commands.POWER_SHELL, false, false));
+        EnvVars expected = jenkins.buildAndAssertSuccess(project).getEnvironment(TaskListener.NULL);
+        wrapper = new EnvironmentScript(script, Commands.POWER_SHELL, false, false);
+        wrapper.setWarmInterpreter(true);
+        project.getBuildWrappersList().replace(wrapper);
+        EnvVars actual = jenkins.buildAndAssertSuccess(project).getEnvironment(TaskListener.NULL);
+        assertEquals("yes", expected.get("host"));
+        assertEquals(expected.get("host"), actual.get("host"));
+        assertEquals(expected.get("output"), actual.get("output"));
+    }
+
+    @Test
+    public void testTrivialScriptMatchesLaunchedScript() throws Exception {
+        if (Functions.isWindows()) {
+            return;
+        }
+        String script = "echo FOO=bar\n"
+                + "echo \"NUMBER=1.$BUILD_NUMBER\"\n"
+                + "echo TAG=${BUILD_TAG}";
+        TestJob evaluated = new TestJob(new EnvironmentScript(script, UNIX_SCRIPT, false, false));
+        jenkins.assertLogContains("evaluated it without a shell", evaluated.build);
+
+        EnvironmentScript launchedWrapper = new EnvironmentScript(script, UNIX_SCRIPT, false, false);
+        launchedWrapper.setAlwaysLaunchScript(true);
+        TestJob launched = new TestJob(launchedWrapper);
+        jenkins.assertLogNotContains("evaluated it without a shell", launched.build);
+
+        EnvVars fast = evaluated.build.getEnvironment(evaluated.listener);
+        EnvVars slow = launched.build.getEnvironment(launched.listener);
+        assertEquals("bar", fast.get("FOO"));
+        assertEquals(slow.get("FOO"), fast.get("FOO"));
+        assertEquals("1.1", fast.get("NUMBER"));
+        assertEquals(slow.get("NUMBER"), fast.get("NUMBER"));
+        // The jobs have different names, so their build tags differ too.
+        assertEquals("jenkins-" + evaluated.project.getName() + "-1", fast.get("TAG"));
+        assertEquals("jenkins-" + launched.project.getName() + "-1", slow.get("TAG"));
+    }
+
+    @Test
+    public void testTrivialScriptLaunchedWithConfiguredShell() throws Exception {
+        if (Functions.isWindows()) {
+            return;
+        }
+        // Another shell may well print something else, so it gets to run the script.
+        jenkins.jenkins.getDescriptorByType(Shell.DescriptorImpl.class).setShell("/bin/sh");
+        TestJob job = new TestJob(new EnvironmentScript("echo FOO=bar", UNIX_SCRIPT, false, false));
+        jenkins.assertLogNotContains("evaluated it without a shell", job.build);
+        assertEquals("bar", job.build.getEnvironment(job.listener).get("FOO"));
+    }
 }
@@ -0,0 +1,84 @@
+package com.lookout.jenkins;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import hudson.EnvVars;
+
+public class EnvironmentSnapshotTest {
+
+    private static EnvironmentSnapshot snapshot() {
+        Map<String, String> variables = new LinkedHashMap<String, String>();
+        variables.put("var1", "one");
+        variables.put("PATH+TOOL", "/opt/tool/bin");
+        variables.put("PATH+OTHER", "/opt/other/bin");
+        return EnvironmentSnapshot.of(variables);
+    }
+
+    @Test
+    public void testMatchesEnvVarsOverride() {
+        EnvVars expected = new EnvVars("PATH", "/usr/bin", "var1", "zero");
+        expected.put("var1", "one");
+        expected.override("PATH+OTHER", "/opt/other/bin");
+        expected.override("PATH+TOOL", "/opt/tool/bin");
+
+        EnvVars env = new EnvVars("PATH", "/usr/bin", "var1", "zero");
+        snapshot().buildEnvVars(env);
+        assertEquals(expected, env);
+
+        // A plain map gets the same result without being copied into an EnvVars.
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("PATH", "/usr/bin");
+        snapshot().buildEnvVars(map);
+        assertEquals("/opt/tool/bin" + File.pathSeparatorChar + "/opt/other/bin" + File.pathSeparatorChar
+                + "/usr/bin", map.get("PATH"));
+    }
+
+    @Test
+    public void testOverlayFollowsChangedBase() {
+        EnvironmentSnapshot.Overlay overlay = snapshot().overlay();
+        for (String base : new String[] { "/usr/bin", "/usr/bin", "/bin", null, "/usr/bin" }) {
+            EnvVars expected = new EnvVars();
+            EnvVars env = new EnvVars();
+            if (base != null) {
+                expected.put("PATH", base);
+                env.put("PATH", base);
+            }
+            snapshot().buildEnvVars(expected);
+            overlay.buildEnvVars(env);
+            assertEquals(expected, env);
+        }
+    }
+
+    @Test
+    public void testWithoutUnchanged() {
+        EnvironmentSnapshot changed = snapshot().withoutUnchanged(new EnvVars("var1", "one"));
+        assertTrue(changed.getEnvAdditions().isEmpty());
+        assertEquals(2, changed.getEnvOverrides().size());
+        assertSame(changed, changed.withoutUnchanged(new EnvVars("var1", "two")));
+    }
+
+    @Test
+    public void testInternSharesEqualSnapshotsAndStrings() {
+        EnvironmentSnapshot first = snapshot().intern();
+        EnvironmentSnapshot second = snapshot();
+        assertNotSame(first, second);
+        assertSame(first, second.intern());
+
+        // A snapshot that differs in one value still shares every other string.
+        Map<String, String> variables = new LinkedHashMap<String, String>();
+        variables.put(new String("var1".toCharArray()), "two");
+        variables.put(new String("PATH+TOOL".toCharArray()), new String("/opt/tool/bin".toCharArray()));
+        EnvironmentSnapshot other = EnvironmentSnapshot.of(variables).intern();
+        assertNotEquals(first, other);
+        assertSame(first.getEnvOverrides().get("PATH+TOOL"), other.getEnvOverrides().get("PATH+TOOL"));
+        assertSame(first.getEnvAdditions().keySet().iterator().next(),
+                other.getEnvAdditions().keySet().iterator().next());
+    }
+}
@@ -0,0 +1,62 @@
+package com.lookout.jenkins;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ScriptCircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterThreshold() throws Exception {
+        ScriptCircuitBreaker breaker = new ScriptCircuitBreaker();
+        assertFalse(breaker.recordFailure("a", 2));
+        assertTrue(breaker.allow("a", 2, 60000));
+        assertTrue(breaker.recordFailure("a", 2));
+        assertTrue(breaker.isOpen("a", 2));
+        assertFalse(breaker.allow("a", 2, 60000));
+        // Other scripts have circuits of their own.
+        assertTrue(breaker.allow("b", 2, 60000));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() throws Exception {
+        ScriptCircuitBreaker breaker = new ScriptCircuitBreaker();
+        breaker.recordFailure("a", 2);
+        breaker.recordSuccess("a");
+        assertFalse(breaker.recordFailure("a", 2));
+        assertTrue(breaker.allow("a", 2, 60000));
+    }
+
+    @Test
+    public void testLetsOneBuildTryAfterCooldown() throws Exception {
+        ScriptCircuitBreaker breaker = new ScriptCircuitBreaker();
+        breaker.recordFailure("a", 1);
+        Thread.sleep(20);
+        assertTrue(breaker.allow("a", 1, 10));
+        // The trial build has the script to itself until the next cooldown.
+        assertFalse(breaker.allow("a", 1, 10000));
+
+        // A failed trial keeps the circuit open, a successful one closes it.
+        assertFalse(breaker.recordFailure("a", 1));
+        assertTrue(breaker.isOpen("a", 1));
+        breaker.recordSuccess("a");
+        assertFalse(breaker.isOpen("a", 1));
+    }
+
+    @Test
+    public void testRetryDelayBackoffWithJitter() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            long first = EnvironmentScript.computeRetryDelayMillis(2, 1, random);
+            assertTrue(first >= 1000 && first <= 2000);
+            long third = EnvironmentScript.computeRetryDelayMillis(2, 3, random);
+            assertTrue(third >= 4000 && third <= 8000);
+            long capped = EnvironmentScript.computeRetryDelayMillis(2, 60, random);
+            assertTrue(capped >= EnvironmentScript.MAX_RETRY_DELAY_MILLIS / 2
+                    && capped <= EnvironmentScript.MAX_RETRY_DELAY_MILLIS);
+        }
+        assertEquals(0, EnvironmentScript.computeRetryDelayMillis(0, 1, random));
+    }
+}
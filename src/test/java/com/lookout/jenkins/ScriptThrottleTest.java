@@ -0,0 +1,70 @@
+package com.lookout.jenkins;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ScriptThrottleTest {
+
+    @Test
+    public void testLimitsSlotsPerKey() throws Exception {
+        ScriptThrottle throttle = new ScriptThrottle();
+        ScriptThrottle.Slot first = throttle.tryAcquire("a", 2);
+        ScriptThrottle.Slot second = throttle.tryAcquire("a", 2);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(throttle.tryAcquire("a", 2));
+        // Other keys have slots of their own.
+        assertNotNull(throttle.tryAcquire("b", 2));
+
+        first.close();
+        // Closing twice must not free a second slot.
+        first.close();
+        ScriptThrottle.Slot third = throttle.tryAcquire("a", 2);
+        assertNotNull(third);
+        assertNull(throttle.tryAcquire("a", 2));
+    }
+
+    @Test
+    public void testChangedLimitTakesEffect() throws Exception {
+        ScriptThrottle throttle = new ScriptThrottle();
+        assertNotNull(throttle.tryAcquire("a", 1));
+        assertNull(throttle.tryAcquire("a", 1));
+        assertNotNull(throttle.tryAcquire("a", 2));
+    }
+
+    @Test
+    public void testWaitersGetSlotsInOrder() throws Exception {
+        ScriptThrottle throttle = new ScriptThrottle();
+        ScriptThrottle.Slot slot = throttle.acquire("a", 1);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 5; i++) {
+            final int index = i;
+            Thread thread = new Thread(() -> {
+                try (ScriptThrottle.Slot waited = throttle.acquire("a", 1)) {
+                    order.add(index);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            // Make sure each thread queues up before the next one starts.
+            while (throttle.getQueueLength("a") <= i) {
+                Thread.sleep(10);
+            }
+            threads.add(thread);
+        }
+
+        slot.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+    }
+}
@@ -0,0 +1,93 @@
+package com.lookout.jenkins;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class VariableLoggerTest {
+
+    final static String NL = System.lineSeparator();
+
+    static Map<String, String> variables(int count) {
+        Map<String, String> variables = new LinkedHashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            variables.put("var" + i, "value" + i);
+        }
+        return variables;
+    }
+
+    static String log(long maxBytes, boolean hideValues, String mode, Map<String, String> additions,
+            Map<String, String> overrides) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, "UTF-8");
+        VariableLogger logger = new VariableLogger(out, maxBytes, hideValues);
+        if (VariableLogger.MODE_SUMMARY.equals(mode)) {
+            logger.logSummary(additions, overrides, 2);
+        } else if (VariableLogger.MODE_BATCHED.equals(mode)) {
+            logger.logBatched(additions, overrides);
+        } else {
+            logger.logFull(additions, overrides);
+        }
+        out.flush();
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFullAndBatchedMatch() throws Exception {
+        Map<String, String> overrides = Collections.singletonMap("PATH+foo", "/foo");
+        for (boolean hide : new boolean[] { false, true }) {
+            assertEquals(log(0, hide, VariableLogger.MODE_FULL, variables(3), overrides),
+                    log(0, hide, VariableLogger.MODE_BATCHED, variables(3), overrides));
+        }
+
+        assertEquals("[environment-script] Adding variable 'var0' with value 'value0'" + NL
+                + "[environment-script] Adding variable 'PATH+foo' with value '/foo'" + NL,
+                log(0, false, VariableLogger.MODE_FULL, variables(1), overrides));
+    }
+
+    @Test
+    public void testHiddenValues() throws Exception {
+        for (String mode : new String[] { VariableLogger.MODE_FULL, VariableLogger.MODE_BATCHED,
+                VariableLogger.MODE_SUMMARY }) {
+            String log = log(0, true, mode, variables(3), Collections.<String, String>emptyMap());
+            assertFalse(mode, log.contains("value"));
+        }
+    }
+
+    @Test
+    public void testSummary() throws Exception {
+        assertEquals("[environment-script] Adding 3 variables and 1 overrides: var0, var1, ..." + NL,
+                log(0, false, VariableLogger.MODE_SUMMARY, variables(3),
+                        Collections.singletonMap("PATH+foo", "/foo")));
+        assertEquals("[environment-script] Adding 0 variables and 0 overrides" + NL,
+                log(0, false, VariableLogger.MODE_SUMMARY, variables(0), Collections.<String, String>emptyMap()));
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        String line = "[environment-script] Adding variable 'var0' with value 'value0'";
+        // Room for two lines, but not a third.
+        long maxBytes = 3 * (line.length() + 1) - 1;
+
+        for (String mode : new String[] { VariableLogger.MODE_FULL, VariableLogger.MODE_BATCHED }) {
+            String log = log(maxBytes, false, mode, variables(1000), Collections.<String, String>emptyMap());
+            assertTrue(mode, log.contains("'var1'"));
+            assertFalse(mode, log.contains("'var2'"));
+            assertTrue(mode, log.endsWith("[environment-script] Not logging 998 more variables, the console limit of "
+                    + maxBytes + " bytes was reached" + NL));
+        }
+    }
+
+    @Test
+    public void testUtf8Length() {
+        assertEquals("mąż😀".getBytes(StandardCharsets.UTF_8).length,
+                VariableLogger.utf8Length("mąż😀"));
+    }
+}
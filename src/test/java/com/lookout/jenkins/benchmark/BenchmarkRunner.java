@@ -0,0 +1,45 @@
+package com.lookout.jenkins.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import jenkins.benchmark.jmh.BenchmarkFinder;
+
+/**
+ * Runs every class annotated with {@link jenkins.benchmark.jmh.JmhBenchmark}
+ * in this package. Only run by the jmh-benchmark profile:
+ *
+ * <pre>
+ * mvn test -Dbenchmark
+ * </pre>
+ *
+ * Results are reported as throughput, and the GC profiler adds allocation
+ * rates (gc.alloc.rate.norm is bytes allocated per operation).
+ */
+public class BenchmarkRunner {
+    @Test
+    public void runJmhBenchmarks() throws Exception {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .forks(1)
+                .addProfiler(GCProfiler.class)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json");
+
+        BenchmarkFinder finder = new BenchmarkFinder(getClass());
+        finder.findBenchmarks(options);
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,79 @@
+package com.lookout.jenkins.benchmark;
+
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import hudson.EnvVars;
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+import com.lookout.jenkins.EnvironmentSnapshot;
+
+/**
+ * Merging the additions and overrides into a build's environment, which
+ * happens on every call to getEnvironment. The gc.alloc.rate.norm reported
+ * for {@link #copyingBuildEnvVars}, which is how it used to be done, shows
+ * what applying only the changes in place saves.
+ */
+@JmhBenchmark
+public class BuildEnvVarsBenchmark {
+    @State(Scope.Benchmark)
+    public static class Variables {
+        @Param({ "10", "1000" })
+        public int variables;
+
+        EnvVars base;
+        EnvironmentSnapshot snapshot;
+        EnvironmentSnapshot.Overlay overlay;
+        Map<String, String> additions;
+        Map<String, String> overrides;
+
+        @Setup
+        public void setup() {
+            // Roughly what a build's environment holds before we add to it.
+            base = new EnvVars();
+            for (int i = 0; i < 100; i++) {
+                base.put("INHERITED_" + i, "/some/inherited/value/" + i);
+            }
+            base.put("PATH", "/usr/local/bin:/usr/bin:/bin");
+            snapshot = EnvironmentSnapshot.of(ScriptOutputs.variables(variables));
+            overlay = snapshot.overlay();
+            additions = snapshot.getEnvAdditions();
+            overrides = snapshot.getEnvOverrides();
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> buildEnvVars(Variables variables) {
+        EnvVars env = new EnvVars(variables.base);
+        variables.snapshot.buildEnvVars(env);
+        return env;
+    }
+
+    @Benchmark
+    public Map<String, String> overlayBuildEnvVars(Variables variables) {
+        EnvVars env = new EnvVars(variables.base);
+        variables.overlay.buildEnvVars(env);
+        return env;
+    }
+
+    @Benchmark
+    public Map<String, String> copyingBuildEnvVars(Variables variables) {
+        EnvVars env = new EnvVars(variables.base);
+        EnvVars copy = new EnvVars(env);
+        copy.putAll(variables.additions);
+        copy.overrideAll(variables.overrides);
+        env.putAll(copy);
+        return env;
+    }
+
+    // What copying the inherited environment costs on its own, for reference.
+    @Benchmark
+    public Map<String, String> copyBaseOnly(Variables variables) {
+        return new EnvVars(variables.base);
+    }
+}
@@ -0,0 +1,131 @@
+package com.lookout.jenkins.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+import com.lookout.jenkins.EnvironmentPluginAction;
+
+/**
+ * The heap held by the injected variables of {@link #BUILDS} loaded builds of
+ * a job, reported as the retainedBytes counter. {@link #perBuildMaps} keeps two
+ * HashMaps per build, which is how {@link EnvironmentPluginAction} used to
+ * store them, against {@link #internedSnapshots}. Every build is loaded with
+ * strings of its own, like reading build.xml does, and only a few of its
+ * variables differ from those of the other builds.
+ */
+@JmhBenchmark
+public class BuildHistoryHeapBenchmark {
+    static final int BUILDS = 10000;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class PerBuildMaps {
+        public long retainedBytes;
+
+        List<Map<String, String>> additions;
+        List<Map<String, String>> overrides;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            long before = usedHeap();
+            additions = new ArrayList<Map<String, String>>(BUILDS);
+            overrides = new ArrayList<Map<String, String>>(BUILDS);
+            for (int build = 0; build < BUILDS; build++) {
+                additions.add(new HashMap<String, String>(load(build, false)));
+                overrides.add(new HashMap<String, String>(load(build, true)));
+            }
+            retainedBytes = usedHeap() - before;
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            additions = null;
+            overrides = null;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class InternedSnapshots {
+        public long retainedBytes;
+
+        List<EnvironmentPluginAction> actions;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            long before = usedHeap();
+            actions = new ArrayList<EnvironmentPluginAction>(BUILDS);
+            for (int build = 0; build < BUILDS; build++) {
+                actions.add(new EnvironmentPluginAction(load(build, false), load(build, true)));
+            }
+            retainedBytes = usedHeap() - before;
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            actions = null;
+        }
+    }
+
+    // Going through every build's variables, like listing the environment of
+    // the whole build history does.
+    @Benchmark
+    public int perBuildMaps(PerBuildMaps history) {
+        int variables = 0;
+        for (int build = 0; build < BUILDS; build++) {
+            variables += history.additions.get(build).size() + history.overrides.get(build).size();
+        }
+        return variables;
+    }
+
+    @Benchmark
+    public int internedSnapshots(InternedSnapshots history) {
+        int variables = 0;
+        for (EnvironmentPluginAction action : history.actions) {
+            variables += action.getSnapshot().size();
+        }
+        return variables;
+    }
+
+    /**
+     * @return The additions or overrides of one build, as freshly read strings.
+     */
+    static Map<String, String> load(int build, boolean overrides) {
+        Map<String, String> variables = new HashMap<String, String>();
+        for (Map.Entry<String, String> variable : ScriptOutputs.variables(50).entrySet()) {
+            if (variable.getKey().indexOf('+') > 0 == overrides) {
+                variables.put(copy(variable.getKey()), copy(variable.getValue()));
+            }
+        }
+        if (!overrides) {
+            variables.put(copy("BUILD_TAG"), "jenkins-benchmark-" + build);
+            variables.put(copy("GIT_COMMIT"), String.format("%040x", build / 10));
+        }
+        return variables;
+    }
+
+    // A string that shares nothing with the original, not even its characters.
+    private static String copy(String string) {
+        return new String(string.toCharArray());
+    }
+
+    static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,43 @@
+package com.lookout.jenkins.benchmark;
+
+import java.io.File;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import hudson.FilePath;
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+import com.lookout.jenkins.commands.PowerShell;
+import com.lookout.jenkins.commands.Shebangs;
+import com.lookout.jenkins.commands.WinBatch;
+
+/**
+ * Building the interpreter command line for the script types that don't need
+ * a running Jenkins. The Unix shell, which asks Jenkins for the configured
+ * shell, is covered by {@link SetUpBenchmark}.
+ */
+@JmhBenchmark
+public class CommandLineBenchmark {
+    @State(Scope.Benchmark)
+    public static class Script {
+        final FilePath scriptFile = new FilePath(new File("/tmp/env-benchmark123.sh"));
+        final String shebangScript = "#!/usr/bin/env python3 -u\nprint('FOO=bar')\n";
+    }
+
+    @Benchmark
+    public String[] shebangs(Script script) throws Exception {
+        return Shebangs.resolveCommandLine(script.shebangScript, script.scriptFile);
+    }
+
+    @Benchmark
+    public String[] powerShell(Script script) {
+        return PowerShell.buildCommandLine(script.scriptFile);
+    }
+
+    @Benchmark
+    public String[] winBatch(Script script) {
+        return WinBatch.buildCommandLine(script.scriptFile);
+    }
+}
@@ -0,0 +1,63 @@
+package com.lookout.jenkins.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+import com.lookout.jenkins.output.OutputParser;
+
+/**
+ * Two gigabytes of script output through the properties parser: one of lines
+ * that set the same variable over and over, then one without a single line
+ * break. The heap the parser still holds afterwards is reported as the
+ * retainedBytes counter, and should be no more than the variable and the line
+ * being read, a few megabytes at most.
+ */
+@JmhBenchmark
+public class LargeOutputBenchmark {
+    static final long GIGABYTE = 1L << 30;
+    static final int MAX_VARIABLE_SIZE = 1 << 20;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Output {
+        public long retainedBytes;
+
+        byte[] lines;
+        byte[] line;
+
+        @Setup
+        public void setup() {
+            StringBuilder builder = new StringBuilder();
+            while (builder.length() < 64 * 1024) {
+                builder.append("VARIABLE=").append(builder.length()).append('\n');
+            }
+            lines = builder.toString().getBytes(StandardCharsets.UTF_8);
+            line = new byte[64 * 1024];
+            Arrays.fill(line, (byte) 'x');
+        }
+    }
+
+    @Benchmark
+    public OutputParser twoGigabytes(Output output) throws IOException {
+        long before = BuildHistoryHeapBenchmark.usedHeap();
+        OutputParser parser = OutputParser.create(OutputParser.FORMAT_PROPERTIES, 0, MAX_VARIABLE_SIZE);
+        for (long written = 0; written < GIGABYTE; written += output.lines.length) {
+            parser.write(output.lines);
+        }
+        for (long written = 0; written < GIGABYTE; written += output.line.length) {
+            parser.write(output.line);
+        }
+        output.retainedBytes = Math.max(output.retainedBytes, BuildHistoryHeapBenchmark.usedHeap() - before);
+        parser.close();
+        return parser;
+    }
+}
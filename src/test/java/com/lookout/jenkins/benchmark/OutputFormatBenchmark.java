@@ -0,0 +1,77 @@
+package com.lookout.jenkins.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+import com.lookout.jenkins.output.JsonOutputParser;
+import com.lookout.jenkins.output.NulDelimitedOutputParser;
+import com.lookout.jenkins.output.OutputParser;
+import com.lookout.jenkins.output.PropertiesOutputParser;
+
+/**
+ * Parsing the same variables printed in each output format, compared with
+ * {@link Properties#load} on the whole properties output. The values hold
+ * Windows paths, which only the properties format has to escape.
+ */
+@JmhBenchmark
+public class OutputFormatBenchmark {
+    @State(Scope.Benchmark)
+    public static class Output {
+        @Param({ "1000", "100000" })
+        public int variables;
+
+        byte[] properties;
+        byte[] json;
+        byte[] nul;
+
+        @Setup
+        public void setup() {
+            properties = ScriptOutputs.properties(variables);
+            json = ScriptOutputs.json(variables);
+            nul = ScriptOutputs.nul(variables);
+        }
+    }
+
+    @Benchmark
+    public Properties propertiesLoad(Output output) throws IOException {
+        Properties properties = new Properties();
+        properties.load(new InputStreamReader(new ByteArrayInputStream(output.properties), StandardCharsets.UTF_8));
+        return properties;
+    }
+
+    @Benchmark
+    public Map<String, String> propertiesParser(Output output) throws IOException {
+        return parse(new PropertiesOutputParser(), output.properties);
+    }
+
+    @Benchmark
+    public Map<String, String> jsonParser(Output output) throws IOException {
+        return parse(new JsonOutputParser(), output.json);
+    }
+
+    @Benchmark
+    public Map<String, String> nulDelimitedParser(Output output) throws IOException {
+        return parse(new NulDelimitedOutputParser(), output.nul);
+    }
+
+    private static Map<String, String> parse(OutputParser parser, byte[] bytes) throws IOException {
+        int chunkSize = OutputParsingBenchmark.CHUNK_SIZE;
+        for (int off = 0; off < bytes.length; off += chunkSize) {
+            parser.write(bytes, off, Math.min(chunkSize, bytes.length - off));
+        }
+        parser.close();
+        return parser.getVariables();
+    }
+}
@@ -0,0 +1,63 @@
+package com.lookout.jenkins.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+import com.lookout.jenkins.output.PropertiesOutputParser;
+
+/**
+ * Parsing script output, fed in the chunk size a process pipe delivers.
+ * {@link #bufferedPropertiesLoad} is how output was parsed before the
+ * streaming parser was introduced.
+ */
+@JmhBenchmark
+public class OutputParsingBenchmark {
+    static final int CHUNK_SIZE = 8192;
+
+    @State(Scope.Benchmark)
+    public static class Output {
+        @Param({ "10", "1000", "100000" })
+        public int variables;
+
+        byte[] bytes;
+
+        @Setup
+        public void setup() {
+            bytes = ScriptOutputs.properties(variables);
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> streamingParser(Output output) throws IOException {
+        PropertiesOutputParser parser = new PropertiesOutputParser();
+        for (int off = 0; off < output.bytes.length; off += CHUNK_SIZE) {
+            parser.write(output.bytes, off, Math.min(CHUNK_SIZE, output.bytes.length - off));
+        }
+        parser.close();
+        return parser.getVariables();
+    }
+
+    @Benchmark
+    public Properties bufferedPropertiesLoad(Output output) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (int off = 0; off < output.bytes.length; off += CHUNK_SIZE) {
+            buffer.write(output.bytes, off, Math.min(CHUNK_SIZE, output.bytes.length - off));
+        }
+        Properties properties = new Properties();
+        properties.load(new InputStreamReader(new ByteArrayInputStream(buffer.toByteArray()), StandardCharsets.UTF_8));
+        return properties;
+    }
+}
@@ -0,0 +1,85 @@
+package com.lookout.jenkins.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+
+import com.lookout.jenkins.AgentScriptRunner;
+import com.lookout.jenkins.ScriptResult;
+import com.lookout.jenkins.output.PropertiesOutputParser;
+
+/**
+ * Controller-side cost of getting a script's variables, when the output is
+ * streamed to the controller and parsed there versus when it is parsed on the
+ * agent by {@link AgentScriptRunner} and only a {@link ScriptResult} comes
+ * back. The bytes counter is what crosses the channel per operation; the
+ * throughput is the controller CPU spent per operation.
+ */
+@JmhBenchmark
+public class ResultTransferBenchmark {
+    @State(Scope.Benchmark)
+    public static class Output {
+        @Param({ "10", "1000", "100000" })
+        public int variables;
+
+        byte[] stdout;
+        byte[] serializedResult;
+
+        @Setup
+        public void setup() throws IOException {
+            stdout = ScriptOutputs.properties(variables);
+
+            PropertiesOutputParser parser = new PropertiesOutputParser();
+            parser.write(stdout);
+            parser.close();
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+                out.writeObject(new ScriptResult(0, parser));
+            }
+            serializedResult = serialized.toByteArray();
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Transferred {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> parseOnController(Output output, Transferred transferred) throws IOException {
+        transferred.bytes += output.stdout.length;
+        PropertiesOutputParser parser = new PropertiesOutputParser();
+        for (int off = 0; off < output.stdout.length; off += OutputParsingBenchmark.CHUNK_SIZE) {
+            parser.write(output.stdout, off, Math.min(OutputParsingBenchmark.CHUNK_SIZE, output.stdout.length - off));
+        }
+        parser.close();
+        return parser.getVariables();
+    }
+
+    @Benchmark
+    public Map<String, String> parseOnAgent(Output output, Transferred transferred) throws Exception {
+        transferred.bytes += output.serializedResult.length;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(output.serializedResult))) {
+            return ((ScriptResult) in.readObject()).getVariables();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.lookout.jenkins.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Synthetic script output shared by the benchmarks.
+ */
+final class ScriptOutputs {
+    private ScriptOutputs() {
+    }
+
+    static Map<String, String> variables(int count) {
+        Map<String, String> variables = new LinkedHashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 9) {
+                variables.put(String.format("PATH+TOOL_%06d", i), String.format("/opt/tools/tool-%06d/bin", i));
+            } else {
+                variables.put(String.format("VARIABLE_%06d", i), String.format("value %06d with C:\\path", i));
+            }
+        }
+        return variables;
+    }
+
+    /**
+     * @return What a script printing this many variables writes to stdout.
+     */
+    static byte[] properties(int count) {
+        StringBuilder output = new StringBuilder();
+        for (Map.Entry<String, String> variable : variables(count).entrySet()) {
+            String value = variable.getValue().replace("\\", "\\\\").replace(":", "\\:");
+            output.append(variable.getKey()).append('=').append(value).append('\n');
+        }
+        return output.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The same variables as {@link #properties}, printed as a JSON
+     *         object.
+     */
+    static byte[] json(int count) {
+        StringBuilder output = new StringBuilder("{");
+        for (Map.Entry<String, String> variable : variables(count).entrySet()) {
+            String value = variable.getValue().replace("\\", "\\\\").replace("\"", "\\\"");
+            output.append(output.length() == 1 ? "\n  \"" : ",\n  \"").append(variable.getKey()).append("\": \"")
+                    .append(value).append('"');
+        }
+        return output.append("\n}\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The same variables as {@link #properties}, printed like
+     *         <tt>env -0</tt>.
+     */
+    static byte[] nul(int count) {
+        StringBuilder output = new StringBuilder();
+        for (Map.Entry<String, String> variable : variables(count).entrySet()) {
+            output.append(variable.getKey()).append('=').append(variable.getValue()).append('\0');
+        }
+        return output.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,83 @@
+package com.lookout.jenkins.benchmark;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.Launcher;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.tasks.BuildWrapper;
+import hudson.util.StreamBuildListener;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+
+import com.lookout.jenkins.EnvironmentPluginAction;
+import com.lookout.jenkins.EnvironmentScript;
+import com.lookout.jenkins.ScriptTimingsAction;
+import com.lookout.jenkins.VariableLogger;
+import com.lookout.jenkins.commands.Commands;
+import com.lookout.jenkins.commands.UnixShell;
+
+/**
+ * A complete {@link EnvironmentScript#setUp} in a running Jenkins. The script
+ * only echoes, so unless {@link JenkinsState#alwaysLaunchScript} is set, it is
+ * evaluated without a shell on Unix, see
+ * {@link EnvironmentScript#isAlwaysLaunchScript()}. Otherwise a real script is
+ * launched through a local launcher.
+ */
+@JmhBenchmark
+public class SetUpBenchmark {
+    public static class JenkinsState extends JmhBenchmarkState {
+        @Param({ VariableLogger.MODE_FULL, VariableLogger.MODE_BATCHED, VariableLogger.MODE_SUMMARY })
+        String logMode;
+
+        @Param({ "true", "false" })
+        boolean alwaysLaunchScript;
+
+        EnvironmentScript wrapper;
+        FreeStyleBuild build;
+        BuildListener listener;
+        Launcher launcher;
+        FilePath scriptFile;
+
+        @Override
+        public void setup() throws Exception {
+            StringBuilder script = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                script.append("echo VARIABLE_").append(i).append("=value").append(i).append('\n');
+            }
+            String scriptType = Functions.isWindows() ? Commands.BATCH_SCRIPT : Commands.UNIX_SCRIPT;
+            wrapper = new EnvironmentScript(script.toString(), scriptType, false, true);
+            wrapper.setLogMode(logMode);
+            wrapper.setAlwaysLaunchScript(alwaysLaunchScript);
+
+            // A finished build gives setUp a workspace to run in.
+            FreeStyleProject project = getJenkins().createProject(FreeStyleProject.class, "benchmark");
+            build = project.scheduleBuild2(0).get();
+
+            listener = new StreamBuildListener(OutputStream.nullOutputStream(), StandardCharsets.UTF_8);
+            launcher = new Launcher.LocalLauncher(listener);
+            scriptFile = build.getWorkspace().child("env-benchmark.sh");
+        }
+    }
+
+    @Benchmark
+    public BuildWrapper.Environment setUp(JenkinsState state) throws Exception {
+        BuildWrapper.Environment environment = state.wrapper.setUp(state.build, state.launcher, state.listener);
+        // Don't let the actions pile up on the build across invocations.
+        state.build.removeActions(EnvironmentPluginAction.class);
+        state.build.removeActions(ScriptTimingsAction.class);
+        return environment;
+    }
+
+    @Benchmark
+    public String[] unixShellCommandLine(JenkinsState state) throws Exception {
+        return UnixShell.resolveCommandLine(state.scriptFile);
+    }
+}
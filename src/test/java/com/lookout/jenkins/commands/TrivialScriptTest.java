@@ -0,0 +1,151 @@
+package com.lookout.jenkins.commands;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import hudson.Functions;
+
+public class TrivialScriptTest {
+
+    // Scripts in the subset, each evaluated in Java and by sh with ENV.
+    final static String[] TRIVIAL = {
+            "",
+            "echo FOO=bar",
+            "echo",
+            "  echo   A=1  \n\n# a comment\n\techo B=2\n",
+            "echo A=1 B=2",
+            "echo X=$BUILD_NUMBER",
+            "echo X=${BUILD_NUMBER}_$JOB_NAME",
+            "echo \"X=$SPACED\"",
+            "echo X=\"$SPACED\"end",
+            "echo \"MULTI=$LINES\"",
+            "echo \"punct=a;b|c&d>e<f(g)h*i?j[k]l~m#n'o{p}\"",
+            "echo \"tabs=a\tb\"",
+            "echo EMPTY=$EMPTY",
+            "echo $EMPTY",
+            "echo $EMPTY A=1",
+            "echo \"\" A=1",
+            "echo \"$EMPTY\"",
+            "echo Y=1.$BUILD_NUMBER-rc+meta:x,y@z%w/v",
+            "echo ${BUILD_NUMBER}",
+    };
+
+    // Scripts outside the subset, left to the shell.
+    final static String[] NOT_TRIVIAL = {
+            "echo 'FOO=bar'",
+            "echo FOO=bar; echo BAR=baz",
+            "echo FOO=`date`",
+            "echo FOO=$(date)",
+            "echo FOO=a\\ b",
+            "echo FOO=*",
+            "echo ~",
+            "echo {a,b}",
+            "echo FOO=bar > /dev/null",
+            "echo FOO=bar | cat",
+            "echo FOO=$1",
+            "echo FOO=$?",
+            "echo FOO=$$",
+            "echo FOO=$PWD",
+            "echo FOO=${BUILD_NUMBER:-1}",
+            "echo FOO=$",
+            "echo \"FOO=bar",
+            "echo FOO=bar\r",
+            "echo FOO=café",
+            "echo #FOO",
+            "echoFOO=bar",
+            "printf 'FOO=bar\\n'",
+            "FOO=bar",
+            "echo FOO=bar\nexit 1",
+    };
+
+    // Scripts in the subset whose result depends on values only the shell can
+    // be trusted with.
+    final static String[] UNSURE = {
+            "echo X=$UNSET",
+            "echo X=$SPACED",
+            "echo X=$STAR",
+            "echo \"X=$BACKSLASH\"",
+            "echo $DASHED",
+            "echo \"$DASHED\"",
+    };
+
+    static Map<String, String> environment() {
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("PATH", "/usr/bin:/bin");
+        env.put("BUILD_NUMBER", "42");
+        env.put("JOB_NAME", "folder/job");
+        env.put("SPACED", "  a   b  ");
+        env.put("LINES", "one\ntwo=2\n");
+        env.put("EMPTY", "");
+        env.put("STAR", "*");
+        env.put("BACKSLASH", "a\\nb");
+        env.put("DASHED", "-n");
+        return env;
+    }
+
+    @Test
+    public void testMatchesShell() throws Exception {
+        if (Functions.isWindows()) {
+            return;
+        }
+        Map<String, String> env = environment();
+        for (String script : TRIVIAL) {
+            TrivialScript trivial = TrivialScript.parse(script);
+            assertNotNull(script, trivial);
+            assertEquals(script, runShell(script, env), trivial.evaluate(env));
+        }
+    }
+
+    @Test
+    public void testLeavesOtherScriptsToShell() {
+        for (String script : NOT_TRIVIAL) {
+            assertNull(script, TrivialScript.parse(script));
+        }
+    }
+
+    @Test
+    public void testLeavesUnsureValuesToShell() {
+        Map<String, String> env = environment();
+        for (String script : UNSURE) {
+            TrivialScript trivial = TrivialScript.parse(script);
+            assertNotNull(script, trivial);
+            assertNull(script, trivial.evaluate(env));
+        }
+    }
+
+    @Test
+    public void testLeavesChangedShellStartupToShell() {
+        Map<String, String> env = environment();
+        env.put("BASH_ENV", "/tmp/startup.sh");
+        assertNull(TrivialScript.parse("echo FOO=bar").evaluate(env));
+    }
+
+    private static String runShell(String script, Map<String, String> env) throws Exception {
+        File file = File.createTempFile("trivial", ".sh");
+        try {
+            Files.write(file.toPath(), script.getBytes(StandardCharsets.UTF_8));
+            ProcessBuilder builder = new ProcessBuilder("/bin/sh", "-xe", file.getPath())
+                    .redirectError(ProcessBuilder.Redirect.DISCARD);
+            builder.environment().clear();
+            builder.environment().putAll(env);
+            Process process = builder.start();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = process.getInputStream()) {
+                in.transferTo(out);
+            }
+            assertEquals(script, 0, process.waitFor());
+            return out.toString(StandardCharsets.UTF_8.name());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.lookout.jenkins.output;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class JsonOutputParserTest {
+
+    final static String SAMPLE = "{\n"
+            + "  \"path\": \"C:\\\\Program Files\\\\Tool\",\n"
+            + "  \"cert\": \"-----BEGIN-----\\nabc\\n-----END-----\",\n"
+            + "  \"escapes\": \"\\\"\\/\\b\\f\\r\\t\\u00e5\",\n"
+            + "  \"UTFstr\": \"mąż \uD83D\uDE00\",\n"
+            + "  \"number\": -12.5e3, \"flag\": true, \"unset\": null,\n"
+            + "  \"empty\": \"\"\n"
+            + "}\n";
+
+    @Test
+    public void testParsesObject() throws Exception {
+        Map<String, String> expected = new LinkedHashMap<String, String>();
+        expected.put("path", "C:\\Program Files\\Tool");
+        expected.put("cert", "-----BEGIN-----\nabc\n-----END-----");
+        expected.put("escapes", "\"/\b\f\r\t\u00e5");
+        expected.put("UTFstr", "mąż \uD83D\uDE00");
+        expected.put("number", "-12.5e3");
+        expected.put("flag", "true");
+        expected.put("empty", "");
+
+        assertEquals(expected, parse(SAMPLE, SAMPLE.length() + 1).getVariables());
+    }
+
+    @Test
+    public void testWritesSplitAnywhere() throws Exception {
+        Map<String, String> expected = parse(SAMPLE, SAMPLE.length() + 1).getVariables();
+        // One byte at a time splits every multi-byte character and every escape.
+        assertEquals(expected, parse(SAMPLE, 1).getVariables());
+        assertEquals(expected, parse(SAMPLE, 3).getVariables());
+    }
+
+    @Test
+    public void testEmptyOutput() throws Exception {
+        JsonOutputParser parser = parse(" \n", 1);
+        assertNull(parser.getFailure());
+        assertTrue(parser.getVariables().isEmpty());
+    }
+
+    @Test
+    public void testReportsMalformedOutput() throws Exception {
+        assertFailure("{\"a\": \"1\",\n\"b\": {}}", 2, "a");
+        assertFailure("{\"a\": \"1\",\n}", 2, "a");
+        assertFailure("{\"a\": [1]}", 1);
+        assertFailure("{\"a\": \"x\" \"b\": \"y\"}", 1, "a");
+        assertFailure("{\"a\": yes}", 1);
+        assertFailure("{\"a\": \"\\q\"}", 1);
+        assertFailure("{\"a\": \"line\nbreak\"}", 1);
+        assertFailure("{\"\": \"x\"}", 1);
+        assertFailure("{\"a\": \"1\"}\n{\"b\": \"2\"}", 2, "a");
+        assertFailure("{\"a\": \"1\"", 1, "a");
+        assertFailure("FOO=bar", 1);
+    }
+
+    @Test
+    public void testEnforcesMaximumOutputSize() throws Exception {
+        JsonOutputParser parser = new JsonOutputParser(10);
+        parser.write("{\"a\": \"12345678\"}".getBytes(StandardCharsets.UTF_8));
+        parser.close();
+
+        assertTrue(parser.getFailure() instanceof OutputTooLargeException);
+    }
+
+    @Test
+    public void testEnforcesMaximumVariableSize() throws Exception {
+        OutputParser parser = OutputParser.create(OutputParser.FORMAT_JSON, 0, 100);
+        parser.write("{\"a\": \"1\", \"b\": \"".getBytes(StandardCharsets.UTF_8));
+        parser.write(new String(new char[200]).replace('\0', 'x').getBytes(StandardCharsets.UTF_8));
+        parser.close();
+
+        assertTrue(parser.getFailure() instanceof VariableTooLargeException);
+        assertEquals("1", parser.getVariables().get("a"));
+        assertFalse(parser.getVariables().containsKey("b"));
+    }
+
+    private static void assertFailure(String sample, long lineNumber, String... parsed) throws Exception {
+        JsonOutputParser parser = parse(sample, 2);
+        assertTrue(sample, parser.getFailure() instanceof OutputParseException);
+        assertEquals(sample, lineNumber, ((OutputParseException) parser.getFailure()).getLineNumber());
+        assertEquals(sample, parsed.length, parser.getVariables().size());
+        for (String key : parsed) {
+            assertTrue(sample, parser.getVariables().containsKey(key));
+        }
+    }
+
+    private static JsonOutputParser parse(String sample, int chunkSize) throws Exception {
+        byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+        JsonOutputParser parser = new JsonOutputParser();
+        for (int off = 0; off < bytes.length; off += chunkSize) {
+            parser.write(bytes, off, Math.min(chunkSize, bytes.length - off));
+        }
+        parser.close();
+        return parser;
+    }
+}
@@ -0,0 +1,94 @@
+package com.lookout.jenkins.output;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class NulDelimitedOutputParserTest {
+
+    final static String SAMPLE = "path=C:\\Program Files\\Tool\0"
+            + "cert=-----BEGIN-----\nabc\n-----END-----\0"
+            + "equals=a=b\0"
+            + "empty=\0"
+            + "\0"
+            + "UTFstr=mąż \uD83D\uDE00\0"
+            + "last=no terminator\n";
+
+    @Test
+    public void testParsesRecords() throws Exception {
+        Map<String, String> expected = new LinkedHashMap<String, String>();
+        expected.put("path", "C:\\Program Files\\Tool");
+        expected.put("cert", "-----BEGIN-----\nabc\n-----END-----");
+        expected.put("equals", "a=b");
+        expected.put("empty", "");
+        expected.put("UTFstr", "mąż \uD83D\uDE00");
+        expected.put("last", "no terminator\n");
+
+        assertEquals(expected, parse(SAMPLE, SAMPLE.length() + 1).getVariables());
+    }
+
+    @Test
+    public void testWritesSplitAnywhere() throws Exception {
+        Map<String, String> expected = parse(SAMPLE, SAMPLE.length() + 1).getVariables();
+        // One byte at a time splits every multi-byte character.
+        assertEquals(expected, parse(SAMPLE, 1).getVariables());
+        assertEquals(expected, parse(SAMPLE, 3).getVariables());
+    }
+
+    @Test
+    public void testIgnoresTrailingWhitespace() throws Exception {
+        NulDelimitedOutputParser parser = parse("a=1\0\n", 1);
+        assertNull(parser.getFailure());
+        assertEquals(1, parser.getVariables().size());
+    }
+
+    @Test
+    public void testReportsMalformedRecords() throws Exception {
+        NulDelimitedOutputParser parser = parse("a=1\nline 2\0b=2\0=3\0c\0", 2);
+        assertTrue(parser.getFailure() instanceof OutputParseException);
+        assertEquals(2, ((OutputParseException) parser.getFailure()).getLineNumber());
+        assertEquals(2, parser.getVariables().size());
+        assertFalse(parser.getVariables().containsKey("c"));
+
+        parser = parse("a=1\0no separator\0b=2\0", 3);
+        assertTrue(parser.getFailure() instanceof OutputParseException);
+        assertEquals(1, parser.getVariables().size());
+    }
+
+    @Test
+    public void testEnforcesMaximumOutputSize() throws Exception {
+        NulDelimitedOutputParser parser = new NulDelimitedOutputParser(10);
+        parser.write("a=1\0".getBytes(StandardCharsets.UTF_8));
+        parser.write("b=2222222222\0".getBytes(StandardCharsets.UTF_8));
+        parser.close();
+
+        assertTrue(parser.getFailure() instanceof OutputTooLargeException);
+        assertEquals(1, parser.getVariables().size());
+    }
+
+    @Test
+    public void testEnforcesMaximumVariableSize() throws Exception {
+        OutputParser parser = OutputParser.create(OutputParser.FORMAT_NUL, 0, 100);
+        parser.write("a=1\0b=".getBytes(StandardCharsets.UTF_8));
+        parser.write(new String(new char[200]).replace('\0', 'x').getBytes(StandardCharsets.UTF_8));
+        parser.close();
+
+        assertTrue(parser.getFailure() instanceof VariableTooLargeException);
+        assertEquals("1", parser.getVariables().get("a"));
+        assertFalse(parser.getVariables().containsKey("b"));
+    }
+
+    private static NulDelimitedOutputParser parse(String sample, int chunkSize) throws Exception {
+        byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+        NulDelimitedOutputParser parser = new NulDelimitedOutputParser();
+        for (int off = 0; off < bytes.length; off += chunkSize) {
+            parser.write(bytes, off, Math.min(chunkSize, bytes.length - off));
+        }
+        parser.close();
+        return parser;
+    }
+}
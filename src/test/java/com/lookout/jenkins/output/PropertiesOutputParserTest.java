@@ -0,0 +1,136 @@
+package com.lookout.jenkins.output;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PropertiesOutputParserTest {
+
+    final static String[] SAMPLES = {
+            "var1=one\nvar2=two\nvar3=three",
+            "var1 = one\r\nvar2:two\r\n  var3   three\r\n",
+            "# comment\n! another comment\n\n\t  \nkey=value\n",
+            "path=C\\:\\\\Program Files\\\\Tool\nmulti=first \\\n    second \\\r\n    third\n",
+            "escaped\\ key=v\\tt\\nn\\u00e5\\=x\nempty=\nnovalue\n=nokey\n",
+            "UTFstr=mąż\nemoji=\uD83D\uDE00\n",
+            "dup=first\ndup=second\n",
+            "trailing=backslash\\",
+            "continued=a\\\n\nafter=blank\n",
+            "#not\\\ncontinued=yes\n",
+    };
+
+    @Test
+    public void testMatchesPropertiesLoad() throws Exception {
+        for (String sample : SAMPLES) {
+            assertEquals(sample, load(sample), parse(sample, sample.length() + 1));
+        }
+    }
+
+    @Test
+    public void testWritesSplitAnywhere() throws Exception {
+        for (String sample : SAMPLES) {
+            // One byte at a time splits every multi-byte character and every \r\n.
+            assertEquals(sample, load(sample), parse(sample, 1));
+            assertEquals(sample, load(sample), parse(sample, 3));
+        }
+    }
+
+    @Test
+    public void testReportsFirstMalformedLine() throws Exception {
+        PropertiesOutputParser parser = new PropertiesOutputParser();
+        parser.write("good=1\n\n# comment\nbad=\\u12g4\nworse=\\u\n".getBytes(StandardCharsets.UTF_8));
+        parser.close();
+
+        assertTrue(parser.getFailure() instanceof OutputParseException);
+        assertEquals(4, ((OutputParseException) parser.getFailure()).getLineNumber());
+        assertEquals("1", parser.getVariables().get("good"));
+        assertFalse(parser.getVariables().containsKey("worse"));
+    }
+
+    @Test
+    public void testEnforcesMaximumOutputSize() throws Exception {
+        PropertiesOutputParser parser = new PropertiesOutputParser(10);
+        parser.write("a=1\n".getBytes(StandardCharsets.UTF_8));
+        parser.write("b=2222222222\n".getBytes(StandardCharsets.UTF_8));
+        parser.close();
+
+        assertTrue(parser.getFailure() instanceof OutputTooLargeException);
+        assertEquals(17, parser.getOutputSize());
+    }
+
+    @Test
+    public void testEnforcesMaximumVariableSize() throws Exception {
+        OutputParser parser = OutputParser.create(OutputParser.FORMAT_PROPERTIES, 0, 100);
+        AtomicInteger failures = new AtomicInteger();
+        parser.setOnFailure(failures::incrementAndGet);
+        parser.write("a=1\n# a comment is not held, however long it is: ".getBytes(StandardCharsets.UTF_8));
+        parser.write(new byte[1000]);
+        parser.write("\nb=".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 9; i++) {
+            parser.write("xxxxxxxxxx".getBytes(StandardCharsets.UTF_8));
+        }
+        assertNull(parser.getFailure());
+        parser.write("xxxxxxxxxx".getBytes(StandardCharsets.UTF_8));
+        parser.close();
+
+        assertTrue(parser.getFailure() instanceof VariableTooLargeException);
+        assertEquals(1, failures.get());
+        assertEquals("1", parser.getVariables().get("a"));
+        assertFalse(parser.getVariables().containsKey("b"));
+    }
+
+    @Test
+    public void testPendingInputStaysBounded() throws Exception {
+        final int maxVariableSize = 1024;
+        OutputParser parser = OutputParser.create(OutputParser.FORMAT_PROPERTIES, 0, maxVariableSize);
+
+        // Lines that set the same variable over and over only hold one line.
+        byte[] lines = "VARIABLE=value\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 1000; i++) {
+            parser.write(lines);
+            assertEquals(0, parser.pendingLength());
+        }
+        // Followed by a line well over the limit, without a single line break.
+        byte[] chunk = new byte[100];
+        Arrays.fill(chunk, (byte) 'x');
+        for (int i = 0; i < 100; i++) {
+            parser.write(chunk);
+            assertTrue("Holding " + parser.pendingLength() + " characters",
+                    parser.pendingLength() <= maxVariableSize + chunk.length);
+        }
+        parser.close();
+
+        assertTrue(parser.getFailure() instanceof VariableTooLargeException);
+        assertEquals(1, parser.getVariables().size());
+        assertEquals(lines.length * 1000 + chunk.length * 100, parser.getOutputSize());
+    }
+
+    private static Map<String, String> load(String sample) throws Exception {
+        Properties properties = new Properties();
+        properties.load(new StringReader(sample));
+        Map<String, String> result = new HashMap<String, String>();
+        for (String key : properties.stringPropertyNames()) {
+            result.put(key, properties.getProperty(key));
+        }
+        return result;
+    }
+
+    private static Map<String, String> parse(String sample, int chunkSize) throws Exception {
+        byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+        PropertiesOutputParser parser = new PropertiesOutputParser();
+        for (int off = 0; off < bytes.length; off += chunkSize) {
+            parser.write(bytes, off, Math.min(chunkSize, bytes.length - off));
+        }
+        parser.close();
+        assertNull(parser.getFailure());
+        return new HashMap<String, String>(parser.getVariables());
+    }
+}